@@ -0,0 +1,76 @@
+package org.remdev.lang.trasanka;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sink for the generated Intel-syntax assembly.
+ * <p>
+ * An instruction is started with {@link #op(String)}, followed by its operands and finished with {@link #end()}:
+ * <pre>
+ *     out.op("mov").mem(QWORD, "rbp", -8).reg("rdi").end();   // "\tmov QWORD PTR [rbp - 8], rdi\n"
+ * </pre>
+ * Operand separators are inserted by the emitter. Directives are emitted the same way as instructions.
+ */
+public interface AsmEmitter extends Closeable {
+    String QWORD = "QWORD";
+    String BYTE = "BYTE";
+
+    AsmEmitter op(String mnemonic);
+
+    AsmEmitter reg(String name);
+
+    AsmEmitter imm(long value);
+
+    /**
+     * Symbol or any other operand that is printed verbatim.
+     */
+    AsmEmitter sym(CharSequence text);
+
+    AsmEmitter sym(char[] text, int offset, int length);
+
+    /**
+     * Local label reference, i.e. {@code prefix + n}.
+     */
+    AsmEmitter target(String prefix, int n);
+
+    /**
+     * {@code OFFSET prefix<n>}.
+     */
+    AsmEmitter offset(String prefix, int n);
+
+    /**
+     * {@code size PTR [base +/- disp]}.
+     */
+    AsmEmitter mem(String size, String base, long disp);
+
+    /**
+     * {@code size PTR [base + index * scale]}.
+     */
+    AsmEmitter mem(String size, String base, String index, int scale);
+
+    /**
+     * {@code size PTR [base + index * scale +/- disp]}.
+     */
+    AsmEmitter mem(String size, String base, String index, int scale, long disp);
+
+    /**
+     * {@code size PTR symbol[rip]}.
+     */
+    AsmEmitter rip(String size, CharSequence symbol);
+
+    void end();
+
+    void label(CharSequence name);
+
+    void label(String prefix, int n);
+
+    /**
+     * Raw line of assembly (the body of an {@code asm:} block), emitted with a leading tab.
+     */
+    void line(CharSequence text);
+
+    void line(char[] text, int offset, int length);
+
+    void flush() throws IOException;
+}
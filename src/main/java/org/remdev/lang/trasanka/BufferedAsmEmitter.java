@@ -0,0 +1,307 @@
+package org.remdev.lang.trasanka;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link AsmEmitter} that encodes the text (UTF-8) straight into a reusable byte buffer
+ * and hands it to the channel in large chunks.
+ */
+public class BufferedAsmEmitter implements AsmEmitter {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+    // longest fixed-size piece appended at once: a long with sign plus a few separators
+    private static final int RESERVE = 32;
+
+    private final WritableByteChannel out;
+    private final byte[] buf;
+    private final ByteBuffer chunk;
+    private int pos;
+    private int operands;
+
+    public BufferedAsmEmitter(WritableByteChannel out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public BufferedAsmEmitter(WritableByteChannel out, int capacity) {
+        this(out, new byte[Math.max(capacity, RESERVE * 4)]);
+    }
+
+    /**
+     * @param buffer scratch space to encode into, reused from an earlier emitter that is done with it
+     */
+    BufferedAsmEmitter(WritableByteChannel out, byte[] buffer) {
+        this.out = out;
+        this.buf = buffer;
+        this.chunk = ByteBuffer.wrap(buf);
+    }
+
+    @Override
+    public AsmEmitter op(String mnemonic) {
+        ensure(1);
+        buf[pos++] = '\t';
+        append(mnemonic);
+        operands = 0;
+        return this;
+    }
+
+    @Override
+    public AsmEmitter reg(String name) {
+        separator();
+        append(name);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter imm(long value) {
+        separator();
+        appendLong(value);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter sym(CharSequence text) {
+        separator();
+        append(text);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter sym(char[] text, int offset, int length) {
+        separator();
+        append(text, offset, length);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter target(String prefix, int n) {
+        separator();
+        append(prefix);
+        appendLong(n);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter offset(String prefix, int n) {
+        separator();
+        append("OFFSET ");
+        append(prefix);
+        appendLong(n);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, long disp) {
+        separator();
+        append(size);
+        append(" PTR [");
+        append(base);
+        if (disp < 0) {
+            append(" - ");
+            appendLong(-disp);
+        } else if (disp > 0) {
+            append(" + ");
+            appendLong(disp);
+        }
+        ensure(1);
+        buf[pos++] = ']';
+        return this;
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, String index, int scale) {
+        return mem(size, base, index, scale, 0);
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, String index, int scale, long disp) {
+        separator();
+        append(size);
+        append(" PTR [");
+        append(base);
+        append(" + ");
+        append(index);
+        if (scale != 1) {
+            append(" * ");
+            appendLong(scale);
+        }
+        if (disp < 0) {
+            append(" - ");
+            appendLong(-disp);
+        } else if (disp > 0) {
+            append(" + ");
+            appendLong(disp);
+        }
+        ensure(1);
+        buf[pos++] = ']';
+        return this;
+    }
+
+    @Override
+    public AsmEmitter rip(String size, CharSequence symbol) {
+        separator();
+        append(size);
+        append(" PTR ");
+        append(symbol);
+        append("[rip]");
+        return this;
+    }
+
+    @Override
+    public void end() {
+        ensure(1);
+        buf[pos++] = '\n';
+    }
+
+    @Override
+    public void label(CharSequence name) {
+        append(name);
+        ensure(2);
+        buf[pos++] = ':';
+        buf[pos++] = '\n';
+    }
+
+    @Override
+    public void label(String prefix, int n) {
+        append(prefix);
+        appendLong(n);
+        ensure(2);
+        buf[pos++] = ':';
+        buf[pos++] = '\n';
+    }
+
+    @Override
+    public void line(CharSequence text) {
+        ensure(1);
+        buf[pos++] = '\t';
+        append(text);
+        end();
+    }
+
+    @Override
+    public void line(char[] text, int offset, int length) {
+        ensure(1);
+        buf[pos++] = '\t';
+        append(text, offset, length);
+        end();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        chunk.limit(pos).position(0);
+        while (chunk.hasRemaining()) {
+            out.write(chunk);
+        }
+        chunk.clear();
+        pos = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void separator() {
+        ensure(2);
+        if (operands++ == 0) {
+            buf[pos++] = ' ';
+        } else {
+            buf[pos++] = ',';
+            buf[pos++] = ' ';
+        }
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void append(CharSequence s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buf[pos++] = (byte) c;
+            } else if (appendWide(c, i + 1 < n ? s.charAt(i + 1) : 0)) {
+                i++;
+            }
+        }
+    }
+
+    private void append(char[] s, int offset, int length) {
+        int n = offset + length;
+        for (int i = offset; i < n; i++) {
+            char c = s[i];
+            if (c < 0x80) {
+                ensure(1);
+                buf[pos++] = (byte) c;
+            } else if (appendWide(c, i + 1 < n ? s[i + 1] : 0)) {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * @return true if {@code next} was consumed as the low half of a surrogate pair
+     */
+    private boolean appendWide(char c, char next) {
+        ensure(4);
+        if (c < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+            int cp = Character.toCodePoint(c, next);
+            buf[pos++] = (byte) (0xF0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            return true;
+        } else if (Character.isSurrogate(c)) {
+            buf[pos++] = '?';
+        } else {
+            buf[pos++] = (byte) (0xE0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return false;
+    }
+
+    private void appendLong(long value) {
+        ensure(RESERVE);
+        if (value == Long.MIN_VALUE) {
+            append("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int end = pos + digits(value);
+        int p = end;
+        do {
+            buf[--p] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        pos = end;
+    }
+
+    private static int digits(long value) {
+        int n = 1;
+        while (value >= 10) {
+            value /= 10;
+            n++;
+        }
+        return n;
+    }
+}
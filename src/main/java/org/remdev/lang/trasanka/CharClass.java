@@ -0,0 +1,60 @@
+package org.remdev.lang.trasanka;
+
+/**
+ * Character classes used by the scanner. ASCII is answered from a precomputed table,
+ * everything else (e.g. Cyrillic identifiers) falls back to {@link Character}.
+ */
+final class CharClass {
+    static final int SPACE = 1;
+    static final int DIGIT = 2;
+    static final int IDENT_START = 4;
+    static final int IDENT_PART = 8;
+    static final int OPERATOR = 16;
+
+    private static final byte[] TABLE = new byte[128];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            int flags = 0;
+            if (Character.isWhitespace(c)) flags |= SPACE;
+            if (c >= '0' && c <= '9') flags |= DIGIT | IDENT_PART;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_') flags |= IDENT_START | IDENT_PART;
+            TABLE[c] = (byte) flags;
+        }
+        String operators = "-+*/%&|~!=<>;:()[],@{}";
+        for (int i = 0; i < operators.length(); i++) {
+            TABLE[operators.charAt(i)] |= OPERATOR;
+        }
+    }
+
+    private CharClass() {
+    }
+
+    private static boolean isAscii(int c) {
+        return (c & ~0x7F) == 0;
+    }
+
+    static boolean isSpace(int c) {
+        if (isAscii(c)) return (TABLE[c] & SPACE) != 0;
+        return c >= 0 && Character.isWhitespace(c);
+    }
+
+    static boolean isDigit(int c) {
+        if (isAscii(c)) return (TABLE[c] & DIGIT) != 0;
+        return c >= 0 && Character.isDigit(c);
+    }
+
+    static boolean isIdentStart(int c) {
+        if (isAscii(c)) return (TABLE[c] & IDENT_START) != 0;
+        return c >= 0 && Character.isAlphabetic(c);
+    }
+
+    static boolean isIdentPart(int c) {
+        if (isAscii(c)) return (TABLE[c] & IDENT_PART) != 0;
+        return c >= 0 && Character.isLetterOrDigit(c);
+    }
+
+    static boolean isOperator(int c) {
+        return isAscii(c) && (TABLE[c] & OPERATOR) != 0;
+    }
+}
@@ -0,0 +1,394 @@
+package org.remdev.lang.trasanka;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writer of the parts of a JVM class file {@link JvmBackend} needs: static fields and static methods.
+ * <p>
+ * The classes are of version 49, which the JVM still verifies by type inference, so no stack map frames have to
+ * be computed for the branches.
+ */
+final class ClassFile {
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_SUPER = 0x0020;
+
+    // the opcodes in use
+    static final int ICONST_0 = 3;
+    static final int LCONST_0 = 9;
+    static final int LCONST_1 = 10;
+    static final int BIPUSH = 16;
+    static final int SIPUSH = 17;
+    static final int LDC = 18;
+    static final int LDC_W = 19;
+    static final int LDC2_W = 20;
+    static final int LLOAD = 22;
+    static final int LSTORE = 55;
+    static final int LASTORE = 80;
+    static final int POP2 = 88;
+    static final int DUP = 89;
+    static final int DUP2 = 92;
+    static final int LADD = 97;
+    static final int LSUB = 101;
+    static final int LMUL = 105;
+    static final int LDIV = 109;
+    static final int LREM = 113;
+    static final int LNEG = 117;
+    static final int LSHL = 121;
+    static final int LAND = 127;
+    static final int LOR = 129;
+    static final int I2L = 133;
+    static final int LCMP = 148;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int IFLT = 155;
+    static final int IFGE = 156;
+    static final int IFGT = 157;
+    static final int IFLE = 158;
+    static final int GOTO = 167;
+    static final int LRETURN = 173;
+    static final int RETURN = 177;
+    static final int GETSTATIC = 178;
+    static final int PUTSTATIC = 179;
+    static final int INVOKESTATIC = 184;
+    static final int NEWARRAY = 188;
+    static final int WIDE = 196;
+    static final int T_LONG = 11;
+
+    // constant pool tags
+    private static final int UTF8 = 1;
+    private static final int LONG = 5;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream constants = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolSize = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    /**
+     * @param name internal name of the class, e.g. {@code a/b/C}
+     */
+    ClassFile(String name) {
+        thisClass = classRef(name);
+        superClass = classRef("java/lang/Object");
+    }
+
+    // ---- constant pool
+
+    int utf8(String text) {
+        Integer index = entries.get("U" + text);
+        if (index == null) {
+            index = entry("U" + text, 1);
+            try {
+                constants.writeByte(UTF8);
+                constants.writeUTF(text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    int classRef(String name) {
+        return reference(CLASS, "C" + name, utf8(name), -1);
+    }
+
+    int string(String text) {
+        return reference(STRING, "S" + text, utf8(text), -1);
+    }
+
+    int longConstant(long value) {
+        Integer index = entries.get("J" + value);
+        if (index == null) {
+            index = entry("J" + value, 2);
+            try {
+                constants.writeByte(LONG);
+                constants.writeLong(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return member(FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return member(METHODREF, owner, name, descriptor);
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        int type = reference(NAME_AND_TYPE, "N" + name + ' ' + descriptor, utf8(name), utf8(descriptor));
+        return reference(tag, tag + owner + '.' + name + ' ' + descriptor, classRef(owner), type);
+    }
+
+    /**
+     * @return the index of an entry referring to one or two other entries ({@code second} < 0 for one)
+     */
+    private int reference(int tag, String key, int first, int second) {
+        Integer index = entries.get(key);
+        if (index == null) {
+            index = entry(key, 1);
+            try {
+                constants.writeByte(tag);
+                constants.writeShort(first);
+                if (second >= 0) {
+                    constants.writeShort(second);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return index;
+    }
+
+    private int entry(String key, int slots) {
+        int index = poolSize;
+        if (index + slots > 0xFFFF) {
+            throw new IllegalStateException("constant pool overflow");
+        }
+        entries.put(key, index);
+        poolSize += slots;
+        return index;
+    }
+
+    // ---- members
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fields.add(b.toByteArray());
+    }
+
+    /**
+     * @return the builder of the body of a new method
+     */
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code(this, access, utf8(name), utf8(descriptor));
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        int codeAttribute = utf8("Code");
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolSize);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (Code method : methods) {
+                method.write(out, codeAttribute);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return b.toByteArray();
+    }
+
+    /**
+     * Bytecode of one method.
+     * <p>
+     * Every instruction is given the change of the operand stack depth it makes, in slots, to find the maximum
+     * depth. Code following an unconditional jump is entered with the depth set by {@link #depth(int)}.
+     */
+    static final class Code {
+        final ClassFile owner;
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[256];
+        private int size;
+        private int depth;
+        private int maxDepth;
+        int maxLocals;
+        // offset of every label or -1 while unplaced, and the jumps to patch: offset of the opcode, label
+        private int[] labels = new int[16];
+        private int labelCount;
+        private final List<int[]> jumps = new ArrayList<>();
+
+        private Code(ClassFile owner, int access, int name, int descriptor) {
+            this.owner = owner;
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        void op(int opcode, int delta) {
+            put(opcode);
+            stack(delta);
+        }
+
+        /**
+         * Instruction with an index into the constant pool: field access, invocation, ldc2_w.
+         */
+        void op(int opcode, int index, int delta) {
+            put(opcode);
+            put(index >> 8, index);
+            stack(delta);
+        }
+
+        void local(int opcode, int slot, int delta) {
+            if (slot > 0xFF) {
+                put(WIDE, opcode);
+                put(slot >> 8, slot);
+            } else {
+                put(opcode, slot);
+            }
+            stack(delta);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                put(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                put(BIPUSH, value);
+            } else if (value == (short) value) {
+                put(SIPUSH, value >> 8);
+                put(value);
+            } else {
+                throw new IllegalArgumentException("int constant " + value);
+            }
+            stack(1);
+        }
+
+        void pushLong(long value) {
+            if (value == 0 || value == 1) {
+                op(LCONST_0 + (int) value, 2);
+            } else if (value == (short) value) {
+                pushInt((int) value);
+                op(I2L, 1);
+            } else {
+                op(LDC2_W, owner.longConstant(value), 2);
+            }
+        }
+
+        void pushString(String text) {
+            int index = owner.string(text);
+            if (index > 0xFF) {
+                op(LDC_W, index, 1);
+            } else {
+                put(LDC, index);
+                stack(1);
+            }
+        }
+
+        void newLongArray(int length) {
+            pushInt(length);
+            put(NEWARRAY, T_LONG);
+        }
+
+        int newLabel() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void mark(int label) {
+            labels[label] = size;
+        }
+
+        /**
+         * Conditional or unconditional jump; the operands the condition consumes are part of {@code delta}.
+         */
+        void jump(int opcode, int label, int delta) {
+            jumps.add(new int[]{size, label});
+            put(opcode, 0, 0);
+            stack(delta);
+        }
+
+        /**
+         * Sets the depth of the operand stack where the code is entered only by jumps.
+         */
+        void depth(int depth) {
+            this.depth = depth;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        private void stack(int delta) {
+            depth += delta;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void put(int... bytes) {
+            for (int b : bytes) {
+                if (size == code.length) {
+                    code = Arrays.copyOf(code, size * 2);
+                }
+                code[size++] = (byte) b;
+            }
+        }
+
+        private void write(DataOutputStream out, int codeAttribute) throws IOException {
+            for (int[] jump : jumps) {
+                int offset = labels[jump[1]] - jump[0];
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("method too large for 16-bit branch offsets");
+                }
+                code[jump[0] + 1] = (byte) (offset >> 8);
+                code[jump[0] + 2] = (byte) offset;
+            }
+            if (size > 0xFFFF) {
+                throw new IllegalStateException("method too large");
+            }
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + size);
+            out.writeShort(maxDepth);
+            out.writeShort(maxLocals);
+            out.writeInt(size);
+            out.write(code, 0, size);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
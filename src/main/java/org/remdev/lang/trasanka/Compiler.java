@@ -0,0 +1,107 @@
+package org.remdev.lang.trasanka;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compiler for embedding: turns minilang source into x86-64 assembly or, with {@link Options#object}, a
+ * relocatable object, written to a sink the caller owns and leaves open.
+ * <p>
+ * Every compilation parses and generates with objects of its own, so compilers may be used from any number of
+ * threads at once; the options are only read and must not change meanwhile. The output buffer of the assembly is
+ * kept per thread and reused by the next compilation on it. Errors in the source are thrown as
+ * {@link SourceException}; nothing is printed except the {@link Options#stats} lines, which go to
+ * {@link Options#statsOut}. The {@code -jvm} and {@code -vm} back ends run programs in the one process-wide
+ * {@link Memory} and are not offered here.
+ */
+public final class Compiler {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final Options options;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a compiler generating functions on a pool of {@link Options#threads} threads of its own, which
+     * all its compilations share.
+     */
+    public Compiler(Options options) {
+        this(options, options.threads > 1 ? new ForkJoinPool(options.threads) : null);
+    }
+
+    /**
+     * Creates a compiler generating functions on {@code pool}, such as {@link ForkJoinPool#commonPool()}, or on
+     * the calling thread if it is null; {@link Options#threads} is not used.
+     */
+    public Compiler(Options options, ForkJoinPool pool) {
+        this.options = options;
+        this.pool = pool;
+    }
+
+    public void compile(Path source, WritableByteChannel out) throws IOException {
+        generate(parse(SourceBuffer.read(source)), out);
+    }
+
+    public void compile(ReadableByteChannel source, WritableByteChannel out) throws IOException {
+        generate(parse(SourceBuffer.read(source)), out);
+    }
+
+    public void compile(CharSequence source, WritableByteChannel out) throws IOException {
+        generate(parse(SourceBuffer.of(source)), out);
+    }
+
+    /**
+     * Appends the assembly of {@code source} to {@code out}.
+     */
+    public void compile(CharSequence source, Appendable out) throws IOException {
+        if (options.object) {
+            throw new IllegalArgumentException("объектный файл нельзя записать как текст");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        compile(source, Channels.newChannel(bytes));
+        out.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the assembly of {@code source}
+     */
+    public String compile(CharSequence source) throws IOException {
+        StringBuilder out = new StringBuilder();
+        compile(source, out);
+        return out.toString();
+    }
+
+    /**
+     * Parses the source and runs the optimizations on the IR.
+     */
+    public Unit parse(SourceBuffer source) {
+        Unit unit = new Trasanka(source).parse();
+        if (options.inlineFunctions) {
+            Inliner.inline(unit, options);
+        }
+        if (options.fold) {
+            ConstantFolder.fold(unit);
+        }
+        if (options.rotateLoops || options.moveInvariants || options.inductionVariables || options.unroll > 1) {
+            LoopOptimizer.optimize(unit, options);
+        }
+        return unit;
+    }
+
+    private void generate(Unit unit, WritableByteChannel out) throws IOException {
+        AsmEmitter emitter = options.object ? new ElfEmitter(out) : new BufferedAsmEmitter(out, BUFFERS.get());
+        new X86Backend(emitter, options).generate(unit, pool);
+        emitter.flush();
+    }
+}
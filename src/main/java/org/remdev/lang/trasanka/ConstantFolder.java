@@ -0,0 +1,425 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Folds constant sub-expressions, simplifies algebraic identities and propagates locals holding a constant.
+ * <p>
+ * Arithmetic wraps around like the 64-bit instructions it replaces. A local is known to be constant from its
+ * assignment up to the next assignment, a join of control flow that may have changed it, or an asm block.
+ */
+public final class ConstantFolder {
+    private final Function function;
+    // per local, indexed by Symbol.index
+    private boolean[] known;
+    private long[] values;
+
+    private ConstantFolder(Function function) {
+        this.function = function;
+    }
+
+    public static void fold(Unit unit) {
+        for (Function function : unit.functions) {
+            new ConstantFolder(function).fold();
+        }
+    }
+
+    private void fold() {
+        known = new boolean[function.locals.size()];
+        values = new long[known.length];
+        function.body = statementList(function.body);
+    }
+
+    private List<Stmt> statementList(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (Stmt s : statements) {
+            statement(s, result);
+        }
+        return result;
+    }
+
+    /**
+     * Appends the folded statement to {@code result}; an if with constant conditions is replaced by the
+     * statements of the branch that is taken.
+     */
+    private void statement(Stmt s, List<Stmt> result) {
+        switch (s.kind) {
+            case Stmt.ASM:
+                // asm may write any local through rbp
+                forgetAll();
+                break;
+            case Stmt.IF:
+                conditional(s, result);
+                return;
+            case Stmt.WHILE: {
+                forgetAssigned(s.expr);
+                forgetAssigned(s.body);
+                s.expr = condition(s.expr);
+                if (s.expr.isConstant(0)) {
+                    return;
+                }
+                boolean[] exitKnown = known.clone();
+                long[] exitValues = values.clone();
+                s.body = statementList(s.body);
+                known = exitKnown;
+                values = exitValues;
+                // break leaves the loop with whatever the body has assigned
+                forgetAssigned(s.body);
+                break;
+            }
+            case Stmt.RETURN:
+            case Stmt.EXPR:
+                if (s.expr != null) {
+                    s.expr = expression(s.expr);
+                }
+                break;
+            default:
+                break;
+        }
+        result.add(s);
+    }
+
+    private void conditional(Stmt s, List<Stmt> result) {
+        List<Expr> conditions = new ArrayList<>();
+        List<List<Stmt>> branches = new ArrayList<>();
+        List<Stmt> otherwise = s.otherwise;
+        boolean[] entryKnown = null;
+        long[] entryValues = null;
+        for (int i = 0; i < s.conditions.size(); i++) {
+            Expr condition = condition(s.conditions.get(i));
+            if (i == 0) {
+                entryKnown = known.clone();
+                entryValues = values.clone();
+            }
+            if (condition.isConstant()) {
+                if (condition.number != 0) {
+                    // always taken: the rest of the chain is dead
+                    otherwise = s.branches.get(i);
+                    break;
+                }
+                continue;
+            }
+            conditions.add(condition);
+            branches.add(branch(s.branches.get(i)));
+        }
+        if (otherwise != null) {
+            otherwise = branch(otherwise);
+        }
+
+        // every local that any part of the chain may assign is unknown after it
+        known = entryKnown;
+        values = entryValues;
+        for (int i = 1; i < s.conditions.size(); i++) {
+            forgetAssigned(s.conditions.get(i));
+        }
+        for (List<Stmt> branch : s.branches) {
+            forgetAssigned(branch);
+        }
+        if (s.otherwise != null) {
+            forgetAssigned(s.otherwise);
+        }
+
+        if (!conditions.isEmpty()) {
+            s.conditions = conditions;
+            s.branches = branches;
+            s.otherwise = otherwise;
+            result.add(s);
+        } else if (otherwise != null) {
+            result.addAll(otherwise);
+        }
+    }
+
+    /**
+     * Folds a branch starting from the current state and leaves the state as it was.
+     */
+    private List<Stmt> branch(List<Stmt> statements) {
+        boolean[] savedKnown = known.clone();
+        long[] savedValues = values.clone();
+        List<Stmt> folded = statementList(statements);
+        known = savedKnown;
+        values = savedValues;
+        return folded;
+    }
+
+    /**
+     * Folds an expression whose value is only tested against zero.
+     */
+    private Expr condition(Expr e) {
+        e = expression(e);
+        while (true) {
+            if (e.kind == Expr.NOT && e.left.kind == Expr.NOT) {
+                e = e.left.left;
+            } else if (e.kind == Expr.NE && e.right.isConstant(0)) {
+                e = e.left;
+            } else {
+                return e;
+            }
+        }
+    }
+
+    private Expr expression(Expr e) {
+        switch (e.kind) {
+            case Expr.LOCAL: {
+                int i = e.symbol.index;
+                return known[i] ? Expr.number(values[i]) : e;
+            }
+            case Expr.ASSIGN:
+                e.rhs = expression(e.rhs);
+                if (e.symbol.kind == Symbol.LOCAL) {
+                    int i = e.symbol.index;
+                    known[i] = e.rhs.isConstant();
+                    values[i] = e.rhs.number;
+                }
+                return e;
+            case Expr.CALL:
+                for (int i = 0; i < e.args.length; i++) {
+                    e.args[i] = expression(e.args[i]);
+                }
+                return e;
+            case Expr.NOT:
+                e.left = expression(e.left);
+                if (e.left.isConstant()) {
+                    return Expr.number(e.left.number == 0 ? 1 : 0);
+                }
+                if (e.left.isComparison()) {
+                    return Expr.binary(Expr.inverse(e.left.kind), e.left.left, e.left.right);
+                }
+                return e;
+            case Expr.NEG:
+                return negate(expression(e.left));
+            case Expr.INDEX:
+            case Expr.BYTE_INDEX:
+                e.left = expression(e.left);
+                e.right = expression(e.right);
+                return e;
+            case Expr.STORE:
+            case Expr.BYTE_STORE:
+                e.left = expression(e.left);
+                e.right = expression(e.right);
+                e.rhs = expression(e.rhs);
+                return e;
+            default:
+                if (e.isBinary()) {
+                    e.left = expression(e.left);
+                    e.right = expression(e.right);
+                    return binary(e);
+                }
+                return e;
+        }
+    }
+
+    private static Expr negate(Expr operand) {
+        if (operand.isConstant()) {
+            return Expr.number(-operand.number);
+        }
+        if (operand.kind == Expr.NEG) {
+            return operand.left;
+        }
+        return Expr.unary(Expr.NEG, operand);
+    }
+
+    /**
+     * Simplifies a binary node whose operands are already folded.
+     */
+    private Expr binary(Expr e) {
+        Expr l = e.left;
+        Expr r = e.right;
+        if (l.isConstant() && r.isConstant()) {
+            Long value = evaluate(e.kind, l.number, r.number);
+            return value != null ? Expr.number(value) : e;
+        }
+        if (l.isConstant() && !r.isConstant()) {
+            // a literal has no side effects, so the operands may trade places
+            switch (e.kind) {
+                case Expr.ADD:
+                case Expr.MUL:
+                case Expr.AND:
+                case Expr.OR:
+                case Expr.EQ:
+                case Expr.NE:
+                case Expr.LT:
+                case Expr.GT:
+                case Expr.LE:
+                case Expr.GE:
+                    return binary(Expr.binary(Expr.swapped(e.kind), r, l));
+                case Expr.SUB:
+                    if (l.number == 0) {
+                        return negate(r);
+                    }
+                    return e;
+                default:
+                    return e;
+            }
+        }
+        if (!r.isConstant()) {
+            return e;
+        }
+
+        long c = r.number;
+        switch (e.kind) {
+            case Expr.SUB:
+                return offset(l, -c);
+            case Expr.ADD:
+                return offset(l, c);
+            case Expr.MUL:
+                if (c == 1) {
+                    return l;
+                }
+                if (c == 0 && !l.hasSideEffects()) {
+                    return r;
+                }
+                if (c == -1) {
+                    return negate(l);
+                }
+                if (l.kind == Expr.MUL && l.right.isConstant()) {
+                    return binary(Expr.binary(Expr.MUL, l.left, Expr.number(l.right.number * c)));
+                }
+                return e;
+            case Expr.DIV:
+                if (c == 1) {
+                    return l;
+                }
+                if (c == -1) {
+                    return negate(l);
+                }
+                return e;
+            case Expr.MOD:
+                if ((c == 1 || c == -1) && !l.hasSideEffects()) {
+                    return Expr.number(0);
+                }
+                return e;
+            case Expr.AND:
+                if (c == -1) {
+                    return l;
+                }
+                if (c == 0 && !l.hasSideEffects()) {
+                    return r;
+                }
+                if (l.kind == Expr.AND && l.right.isConstant()) {
+                    return binary(Expr.binary(Expr.AND, l.left, Expr.number(l.right.number & c)));
+                }
+                return e;
+            case Expr.OR:
+                if (c == 0) {
+                    return l;
+                }
+                if (c == -1 && !l.hasSideEffects()) {
+                    return r;
+                }
+                if (l.kind == Expr.OR && l.right.isConstant()) {
+                    return binary(Expr.binary(Expr.OR, l.left, Expr.number(l.right.number | c)));
+                }
+                return e;
+            default:
+                return e;
+        }
+    }
+
+    /**
+     * @return {@code base + c}, merged with a constant already added to or subtracted from {@code base}
+     */
+    private static Expr offset(Expr base, long c) {
+        if ((base.kind == Expr.ADD || base.kind == Expr.SUB) && base.right.isConstant()) {
+            c += base.kind == Expr.ADD ? base.right.number : -base.right.number;
+            base = base.left;
+        }
+        if (c == 0) {
+            return base;
+        }
+        if (c < 0 && c != Long.MIN_VALUE) {
+            return Expr.binary(Expr.SUB, base, Expr.number(-c));
+        }
+        return Expr.binary(Expr.ADD, base, Expr.number(c));
+    }
+
+    /**
+     * @return the value of {@code a op b}, or null if it has to be left to run time
+     */
+    private static Long evaluate(int kind, long a, long b) {
+        switch (kind) {
+            case Expr.OR:
+                return a | b;
+            case Expr.AND:
+                return a & b;
+            case Expr.ADD:
+                return a + b;
+            case Expr.SUB:
+                return a - b;
+            case Expr.MUL:
+                return a * b;
+            case Expr.DIV:
+            case Expr.MOD:
+                // division by zero and the overflowing MIN / -1 trap at run time
+                if (b == 0 || a == Long.MIN_VALUE && b == -1) {
+                    return null;
+                }
+                return kind == Expr.DIV ? a / b : a % b;
+            case Expr.LT:
+                return a < b ? 1L : 0L;
+            case Expr.GT:
+                return a > b ? 1L : 0L;
+            case Expr.LE:
+                return a <= b ? 1L : 0L;
+            case Expr.GE:
+                return a >= b ? 1L : 0L;
+            case Expr.EQ:
+                return a == b ? 1L : 0L;
+            case Expr.NE:
+                return a != b ? 1L : 0L;
+            default:
+                return null;
+        }
+    }
+
+    private void forgetAll() {
+        Arrays.fill(known, false);
+    }
+
+    private void forgetAssigned(List<Stmt> statements) {
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.ASM:
+                    forgetAll();
+                    break;
+                case Stmt.IF:
+                    for (Expr condition : s.conditions) {
+                        forgetAssigned(condition);
+                    }
+                    for (List<Stmt> branch : s.branches) {
+                        forgetAssigned(branch);
+                    }
+                    if (s.otherwise != null) {
+                        forgetAssigned(s.otherwise);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    forgetAssigned(s.expr);
+                    forgetAssigned(s.body);
+                    break;
+                default:
+                    if (s.expr != null) {
+                        forgetAssigned(s.expr);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void forgetAssigned(Expr e) {
+        if (e.kind == Expr.ASSIGN && e.symbol.kind == Symbol.LOCAL) {
+            known[e.symbol.index] = false;
+        }
+        if (e.left != null) forgetAssigned(e.left);
+        if (e.right != null) forgetAssigned(e.right);
+        if (e.rhs != null) forgetAssigned(e.rhs);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                forgetAssigned(arg);
+            }
+        }
+    }
+}
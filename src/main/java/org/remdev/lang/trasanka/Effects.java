@@ -0,0 +1,95 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.util.BitSet;
+
+/**
+ * Reads and writes of an expression, used to decide whether two expressions may be evaluated in either order.
+ * <p>
+ * Locals never have their address taken, so only an assignment writes a local. A call may write any global
+ * and any memory; stores write memory.
+ */
+final class Effects {
+    final BitSet readsLocals = new BitSet();
+    final BitSet writesLocals = new BitSet();
+    boolean readsGlobals;
+    boolean writesGlobals;
+    boolean readsMemory;
+    boolean writesMemory;
+
+    static Effects of(Expr e) {
+        Effects effects = new Effects();
+        effects.collect(e);
+        return effects;
+    }
+
+    /**
+     * @return true if evaluating {@code a} after {@code b} gives the same results as evaluating it before
+     */
+    static boolean independent(Expr a, Expr b) {
+        if (a.hasSideEffects() && b.hasSideEffects()) {
+            return false;
+        }
+        if (!a.hasSideEffects() && !b.hasSideEffects()) {
+            return true;
+        }
+        Effects x = of(a);
+        Effects y = of(b);
+        return !x.conflicts(y) && !y.conflicts(x);
+    }
+
+    /**
+     * @return true if the writes of this expression may change what {@code other} reads
+     */
+    private boolean conflicts(Effects other) {
+        return writesLocals.intersects(other.readsLocals)
+                || writesGlobals && other.readsGlobals
+                || writesMemory && other.readsMemory;
+    }
+
+    /**
+     * Adds the reads and writes of {@code e}.
+     */
+    void collect(Expr e) {
+        switch (e.kind) {
+            case Expr.LOCAL:
+                readsLocals.set(e.symbol.index);
+                break;
+            case Expr.GLOBAL:
+                readsGlobals = true;
+                break;
+            case Expr.ASSIGN:
+                if (e.symbol.kind == Symbol.LOCAL) {
+                    writesLocals.set(e.symbol.index);
+                } else {
+                    writesGlobals = true;
+                }
+                break;
+            case Expr.CALL:
+                writesGlobals = true;
+                writesMemory = true;
+                readsGlobals = true;
+                readsMemory = true;
+                break;
+            case Expr.INDEX:
+            case Expr.BYTE_INDEX:
+                readsMemory = true;
+                break;
+            case Expr.STORE:
+            case Expr.BYTE_STORE:
+                writesMemory = true;
+                break;
+            default:
+                break;
+        }
+        if (e.left != null) collect(e.left);
+        if (e.right != null) collect(e.right);
+        if (e.rhs != null) collect(e.rhs);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                collect(arg);
+            }
+        }
+    }
+}
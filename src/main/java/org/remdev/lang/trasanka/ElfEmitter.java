@@ -0,0 +1,617 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.Insn.Operand;
+import org.remdev.lang.trasanka.X86Encoder.Fixup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link AsmEmitter} that assembles the code itself and writes a relocatable ELF64 object file, so that no
+ * assembler has to parse the text.
+ * <p>
+ * The instructions are recorded and assembled by {@link #flush()}. Jumps to local labels take the short form
+ * where the label is near enough, growing to the long form until every distance fits. Labels starting with
+ * {@code .L} are not put into the symbol table; references to local labels are relocated against their section,
+ * references to anything else against the symbol, which is undefined unless it is a label, a {@code .globl}
+ * or a {@code .comm}.
+ * <p>
+ * Lines of {@code asm:} blocks are parsed into instructions; only the operand forms the back end itself uses
+ * are understood.
+ */
+public final class ElfEmitter implements AsmEmitter {
+    private static final int TEXT = 0;
+    private static final int RODATA = 1;
+    private static final String[] SECTIONS = {".text", ".rodata"};
+
+    // what a recorded line becomes
+    private static final int CODE = 0;
+    private static final int JUMP = 1;
+    private static final int LABEL = 2;
+    private static final int ALIGN = 3;
+
+    // ELF constants
+    private static final int SHT_PROGBITS = 1;
+    private static final int SHT_SYMTAB = 2;
+    private static final int SHT_STRTAB = 3;
+    private static final int SHT_RELA = 4;
+    private static final int SHF_ALLOC = 2;
+    private static final int SHF_EXECINSTR = 4;
+    private static final int SHF_INFO_LINK = 0x40;
+    private static final int SHN_COMMON = 0xFFF2;
+    private static final int STB_LOCAL = 0;
+    private static final int STB_GLOBAL = 1;
+    private static final int STT_NOTYPE = 0;
+    private static final int STT_OBJECT = 1;
+    private static final int STT_SECTION = 3;
+
+    private final WritableByteChannel out;
+    private final InsnList recorded = new InsnList();
+
+    /**
+     * A recorded line placed into its section.
+     */
+    private static final class Piece {
+        int kind;
+        final int section;
+        final Insn insn;
+        byte[] code;
+        List<Fixup> fixups;
+        // LABEL: the name, JUMP: the target
+        String label;
+        // JUMP: rel32 instead of rel8, ALIGN: the alignment
+        boolean near;
+        int alignment;
+        int offset;
+        int size;
+
+        Piece(int kind, int section, Insn insn) {
+            this.kind = kind;
+            this.section = section;
+            this.insn = insn;
+        }
+    }
+
+    /**
+     * Relocation of a section: {@code symbol} is an index into the symbol table once it is built.
+     */
+    private static final class Rela {
+        final long offset;
+        final int type;
+        final String symbol;
+        final long addend;
+
+        Rela(long offset, int type, String symbol, long addend) {
+            this.offset = offset;
+            this.type = type;
+            this.symbol = symbol;
+            this.addend = addend;
+        }
+    }
+
+    public ElfEmitter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    @Override
+    public AsmEmitter op(String mnemonic) {
+        return recorded.op(mnemonic);
+    }
+
+    @Override
+    public AsmEmitter reg(String name) {
+        return recorded.reg(name);
+    }
+
+    @Override
+    public AsmEmitter imm(long value) {
+        return recorded.imm(value);
+    }
+
+    @Override
+    public AsmEmitter sym(CharSequence text) {
+        return recorded.sym(text);
+    }
+
+    @Override
+    public AsmEmitter sym(char[] text, int offset, int length) {
+        return recorded.sym(text, offset, length);
+    }
+
+    @Override
+    public AsmEmitter target(String prefix, int n) {
+        return recorded.target(prefix, n);
+    }
+
+    @Override
+    public AsmEmitter offset(String prefix, int n) {
+        return recorded.offset(prefix, n);
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, long disp) {
+        return recorded.mem(size, base, disp);
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, String index, int scale) {
+        return recorded.mem(size, base, index, scale);
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, String index, int scale, long disp) {
+        return recorded.mem(size, base, index, scale, disp);
+    }
+
+    @Override
+    public AsmEmitter rip(String size, CharSequence symbol) {
+        return recorded.rip(size, symbol);
+    }
+
+    @Override
+    public void end() {
+        recorded.end();
+    }
+
+    @Override
+    public void label(CharSequence name) {
+        recorded.label(name);
+    }
+
+    @Override
+    public void label(String prefix, int n) {
+        recorded.label(prefix, n);
+    }
+
+    /**
+     * Records a line of an {@code asm:} block: a label or an instruction with register, number, character,
+     * symbol, {@code symbol[rip]} and {@code SIZE PTR [base + index * scale +/- disp]} operands.
+     */
+    @Override
+    public void line(CharSequence text) {
+        String line = text.toString().trim();
+        if (line.endsWith(":")) {
+            recorded.label(line.substring(0, line.length() - 1));
+            return;
+        }
+        int space = line.indexOf(' ');
+        String mnemonic = space < 0 ? line : line.substring(0, space);
+        List<Operand> operands = new ArrayList<>();
+        if (space >= 0) {
+            for (String operand : line.substring(space + 1).split(",")) {
+                operands.add(operand(operand.trim(), line));
+            }
+        }
+        recorded.insns.add(Insn.op(mnemonic, operands.toArray(new Operand[0])));
+    }
+
+    @Override
+    public void line(char[] text, int offset, int length) {
+        line(new String(text, offset, length));
+    }
+
+    private static Operand operand(String text, String line) {
+        if (Insn.family(text) >= 0) {
+            return Operand.reg(text);
+        }
+        if (text.endsWith("[rip]")) {
+            int ptr = text.indexOf(" PTR ");
+            Operand o = new Operand(Operand.RIP);
+            o.size = ptr < 0 ? AsmEmitter.QWORD : text.substring(0, ptr);
+            o.name = text.substring(ptr < 0 ? 0 : ptr + 5, text.length() - 5).trim();
+            return o;
+        }
+        int bracket = text.indexOf('[');
+        if (bracket < 0) {
+            Operand o = new Operand(Operand.SYM);
+            o.name = text;
+            return o;
+        }
+        Operand o = new Operand(Operand.MEM);
+        int ptr = text.indexOf(" PTR ");
+        o.size = ptr < 0 ? AsmEmitter.QWORD : text.substring(0, ptr);
+        o.scale = 1;
+        String address = text.substring(bracket + 1, text.length() - 1).replace(" ", "").replace("-", "+-");
+        for (String term : address.split("\\+")) {
+            int star = term.indexOf('*');
+            if (star >= 0) {
+                o.index = term.substring(0, star);
+                o.scale = Integer.parseInt(term.substring(star + 1));
+            } else if (Insn.family(term) >= 0) {
+                if (o.name == null) {
+                    o.name = term;
+                } else {
+                    o.index = term;
+                }
+            } else if (!term.isEmpty()) {
+                try {
+                    o.value += Long.decode(term);
+                } catch (NumberFormatException e) {
+                    throw new IllegalStateException("asm-строку нельзя собрать: " + line);
+                }
+            }
+        }
+        if (o.name == null || !text.endsWith("]")) {
+            throw new IllegalStateException("asm-строку нельзя собрать: " + line);
+        }
+        return o;
+    }
+
+    /**
+     * Assembles the recorded code into an object file and writes it. The object is complete, so this is done once,
+     * after the whole unit was generated.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (recorded.insns.isEmpty()) {
+            return;
+        }
+        ByteBuffer image = ByteBuffer.wrap(assemble(recorded.insns));
+        recorded.insns.clear();
+        while (image.hasRemaining()) {
+            out.write(image);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    // ---- assembling
+
+    private final List<Piece> pieces = new ArrayList<>();
+    // label -> the piece defining it
+    private final Map<String, Piece> labels = new HashMap<>();
+    private final Set<String> globals = new HashSet<>();
+    // .comm symbol -> size, alignment
+    private final Map<String, long[]> commons = new LinkedHashMap<>();
+    private final Bytes[] contents = {new Bytes(), new Bytes()};
+    private final List<List<Rela>> relocations = Arrays.asList(new ArrayList<Rela>(), new ArrayList<Rela>());
+    private int rodataAlignment = 1;
+
+    private byte[] assemble(List<Insn> insns) {
+        X86Encoder encoder = new X86Encoder();
+        int section = TEXT;
+        for (Insn insn : insns) {
+            switch (insn.kind) {
+                case Insn.LABEL: {
+                    Piece p = new Piece(LABEL, section, insn);
+                    p.label = insn.number < 0 ? insn.op : insn.op + insn.number;
+                    labels.put(p.label, p);
+                    pieces.add(p);
+                    break;
+                }
+                default:
+                    if (insn.isDirective()) {
+                        section = directive(insn, section);
+                    } else if (X86Encoder.isJump(insn)) {
+                        Piece p = new Piece(JUMP, section, insn);
+                        Operand target = insn.operands[0];
+                        p.label = target.kind == Operand.TARGET ? target.name + target.value : target.name;
+                        pieces.add(p);
+                    } else {
+                        Piece p = new Piece(CODE, section, insn);
+                        p.fixups = new ArrayList<>();
+                        p.code = encoder.encode(insn, p.fixups);
+                        pieces.add(p);
+                    }
+                    break;
+            }
+        }
+        for (Piece p : pieces) {
+            if (p.kind == JUMP && (!labels.containsKey(p.label) || labels.get(p.label).section != p.section)) {
+                // the address is left to the linker
+                p.kind = CODE;
+                p.fixups = new ArrayList<>();
+                p.code = encoder.encode(p.insn, p.fixups);
+            }
+        }
+        layout();
+        for (Piece p : pieces) {
+            Bytes content = contents[p.section];
+            switch (p.kind) {
+                case JUMP:
+                    content.put(encoder.jump(p.insn, p.near, labels.get(p.label).offset - (p.offset + p.size)));
+                    break;
+                case ALIGN:
+                    content.put(new byte[p.size]);
+                    break;
+                case CODE:
+                    content.put(p.code);
+                    for (Fixup f : p.fixups) {
+                        relocations.get(p.section).add(new Rela(p.offset + f.at, f.type, f.symbol, f.addend));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return write();
+    }
+
+    /**
+     * @return the section in effect after the directive
+     */
+    private int directive(Insn insn, int section) {
+        Operand[] o = insn.operands;
+        switch (insn.op) {
+            case ".intel_syntax":
+                return section;
+            case ".text":
+                return TEXT;
+            case ".section":
+                int n = Arrays.asList(SECTIONS).indexOf(o[0].name);
+                if (n < 0) {
+                    throw new IllegalArgumentException("section " + o[0].name);
+                }
+                return n;
+            case ".globl":
+                globals.add(o[0].name);
+                return section;
+            case ".comm":
+                commons.put(o[0].name, new long[]{o[1].value, o[2].value});
+                return section;
+            case ".string": {
+                Piece p = new Piece(CODE, section, insn);
+                p.code = Lexer.stringValue(o[0].name);
+                p.fixups = new ArrayList<>();
+                pieces.add(p);
+                return section;
+            }
+            case ".quad": {
+                Piece p = new Piece(CODE, section, insn);
+                p.code = new byte[8];
+                p.fixups = new ArrayList<>();
+                if (o[0].kind == Operand.IMM) {
+                    p.code = new Bytes().put64(o[0].value).toArray();
+                } else {
+                    String symbol = o[0].kind == Operand.TARGET ? o[0].name + o[0].value : o[0].name;
+                    p.fixups.add(new Fixup(0, X86Encoder.R_X86_64_64, symbol, 0));
+                }
+                pieces.add(p);
+                return section;
+            }
+            case ".align": {
+                Piece p = new Piece(ALIGN, section, insn);
+                p.alignment = (int) o[0].value;
+                if (section == RODATA) {
+                    rodataAlignment = Math.max(rodataAlignment, p.alignment);
+                }
+                pieces.add(p);
+                return section;
+            }
+            default:
+                throw new IllegalArgumentException("directive " + insn.op);
+        }
+    }
+
+    /**
+     * Places the pieces, starting with every jump short and making long the ones whose label is out of reach
+     * until all of them fit.
+     */
+    private void layout() {
+        boolean changed = true;
+        while (changed) {
+            int[] offsets = new int[SECTIONS.length];
+            for (Piece p : pieces) {
+                p.offset = offsets[p.section];
+                switch (p.kind) {
+                    case JUMP:
+                        p.size = X86Encoder.jumpSize(p.insn, p.near);
+                        break;
+                    case ALIGN:
+                        p.size = -p.offset & (p.alignment - 1);
+                        break;
+                    case CODE:
+                        p.size = p.code.length;
+                        break;
+                    default:
+                        p.size = 0;
+                        break;
+                }
+                offsets[p.section] += p.size;
+            }
+            changed = false;
+            for (Piece p : pieces) {
+                if (p.kind == JUMP && !p.near) {
+                    Piece target = labels.get(p.label);
+                    if (!X86Encoder.fits8(target.offset - (p.offset + p.size))) {
+                        p.near = true;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // ---- the object file
+
+    private byte[] write() {
+        // symbols: null, sections, local labels, then the globals
+        List<String> names = new ArrayList<>();
+        Bytes symtab = new Bytes();
+        Bytes strtab = new Bytes().put8(0);
+        Map<String, Integer> index = new HashMap<>();
+        symtab.put(new byte[24]);
+        names.add("");
+        for (int s = 0; s < SECTIONS.length; s++) {
+            symbol(symtab, 0, STB_LOCAL, STT_SECTION, sectionIndex(s), 0, 0);
+            names.add(SECTIONS[s]);
+        }
+        for (Piece p : pieces) {
+            if (p.kind == LABEL && !globals.contains(p.label) && !p.label.startsWith(".L")) {
+                index.put(p.label, names.size());
+                symbol(symtab, strtab.string(p.label), STB_LOCAL, STT_NOTYPE, sectionIndex(p.section), p.offset, 0);
+                names.add(p.label);
+            }
+        }
+        int firstGlobal = names.size();
+        for (Piece p : pieces) {
+            if (p.kind == LABEL && globals.contains(p.label)) {
+                index.put(p.label, names.size());
+                symbol(symtab, strtab.string(p.label), STB_GLOBAL, STT_NOTYPE, sectionIndex(p.section), p.offset, 0);
+                names.add(p.label);
+            }
+        }
+        for (Map.Entry<String, long[]> c : commons.entrySet()) {
+            index.put(c.getKey(), names.size());
+            long[] sizeAlign = c.getValue();
+            symbol(symtab, strtab.string(c.getKey()), STB_GLOBAL, STT_OBJECT, SHN_COMMON, sizeAlign[1], sizeAlign[0]);
+            names.add(c.getKey());
+        }
+
+        Bytes[] rela = new Bytes[SECTIONS.length];
+        for (int s = 0; s < SECTIONS.length; s++) {
+            rela[s] = new Bytes();
+            for (Rela r : relocations.get(s)) {
+                Piece label = labels.get(r.symbol);
+                int symbol;
+                long addend = r.addend;
+                if (label != null && !globals.contains(r.symbol)) {
+                    symbol = 1 + label.section;
+                    addend += label.offset;
+                } else {
+                    Integer i = index.get(r.symbol);
+                    if (i == null) {
+                        i = names.size();
+                        index.put(r.symbol, i);
+                        symbol(symtab, strtab.string(r.symbol), STB_GLOBAL, STT_NOTYPE, 0, 0, 0);
+                        names.add(r.symbol);
+                    }
+                    symbol = i;
+                }
+                rela[s].put64(r.offset).put64((long) symbol << 32 | r.type).put64(addend);
+            }
+        }
+
+        // sections: null, .text, .rela.text, .rodata, .rela.rodata, .note.GNU-stack, .symtab, .strtab, .shstrtab
+        Bytes shstrtab = new Bytes().put8(0);
+        Bytes file = new Bytes();
+        file.put(new byte[64]);
+        Bytes headers = new Bytes();
+        headers.put(new byte[64]);
+        section(headers, file, shstrtab.string(".text"), SHT_PROGBITS, SHF_ALLOC | SHF_EXECINSTR,
+                contents[TEXT], 0, 0, 1, 0);
+        section(headers, file, shstrtab.string(".rela.text"), SHT_RELA, SHF_INFO_LINK, rela[TEXT], 6, 1, 8, 24);
+        section(headers, file, shstrtab.string(".rodata"), SHT_PROGBITS, SHF_ALLOC, contents[RODATA], 0, 0,
+                rodataAlignment, 0);
+        section(headers, file, shstrtab.string(".rela.rodata"), SHT_RELA, SHF_INFO_LINK, rela[RODATA], 6, 3, 8, 24);
+        section(headers, file, shstrtab.string(".note.GNU-stack"), SHT_PROGBITS, 0, new Bytes(), 0, 0, 1, 0);
+        section(headers, file, shstrtab.string(".symtab"), SHT_SYMTAB, 0, symtab, 7, firstGlobal, 8, 24);
+        section(headers, file, shstrtab.string(".strtab"), SHT_STRTAB, 0, strtab, 0, 0, 1, 0);
+        int shstrndx = 8;
+        section(headers, file, shstrtab.string(".shstrtab"), SHT_STRTAB, 0, shstrtab, 0, 0, 1, 0);
+        file.align(8);
+        long shoff = file.size();
+        file.put(headers.toArray());
+
+        byte[] image = file.toArray();
+        Bytes header = new Bytes();
+        header.put(new byte[]{0x7F, 'E', 'L', 'F', 2, 1, 1, 0}).put(new byte[8]);
+        header.put16(1).put16(62).put32(1).put64(0).put64(0).put64(shoff).put32(0);
+        header.put16(64).put16(0).put16(0).put16(64).put16(headers.size() / 64).put16(shstrndx);
+        System.arraycopy(header.toArray(), 0, image, 0, 64);
+        return image;
+    }
+
+    private static int sectionIndex(int section) {
+        // .text is section 1, .rodata 3
+        return 1 + 2 * section;
+    }
+
+    private static void symbol(Bytes symtab, int name, int bind, int type, int section, long value, long size) {
+        symtab.put32(name).put8(bind << 4 | type).put8(0).put16(section).put64(value).put64(size);
+    }
+
+    /**
+     * Appends the contents of a section to {@code file} and its header to {@code headers}.
+     */
+    private static void section(Bytes headers, Bytes file, int name, int type, long flags, Bytes content, int link,
+                                int info, int alignment, int entsize) {
+        file.align(alignment);
+        long offset = file.size();
+        file.put(content.toArray());
+        headers.put32(name).put32(type).put64(flags).put64(0).put64(offset).put64(content.size());
+        headers.put32(link).put32(info).put64(alignment).put64(entsize);
+    }
+
+    /**
+     * Little-endian byte array builder.
+     */
+    private static final class Bytes {
+        private byte[] data = new byte[256];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        Bytes put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        Bytes put8(int value) {
+            ensure(1);
+            data[size++] = (byte) value;
+            return this;
+        }
+
+        Bytes put16(int value) {
+            return put8(value).put8(value >> 8);
+        }
+
+        Bytes put32(int value) {
+            return put16(value).put16(value >> 16);
+        }
+
+        Bytes put64(long value) {
+            return put32((int) value).put32((int) (value >> 32));
+        }
+
+        void align(int alignment) {
+            while (size % alignment != 0) {
+                put8(0);
+            }
+        }
+
+        /**
+         * Appends a zero-terminated string.
+         *
+         * @return its offset
+         */
+        int string(String s) {
+            int offset = size;
+            put(s.getBytes(StandardCharsets.UTF_8));
+            put8(0);
+            return offset;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+            }
+        }
+    }
+}
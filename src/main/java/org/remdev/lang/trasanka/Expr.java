@@ -0,0 +1,158 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.math.BigInteger;
+
+/**
+ * Expression node of the IR built by the parser.
+ */
+public final class Expr {
+    public static final int NUMBER = 0;
+    public static final int CHAR = 1;
+    public static final int STRING = 2;
+    public static final int LOCAL = 3;
+    public static final int GLOBAL = 4;
+    public static final int ASSIGN = 5;
+    public static final int CALL = 6;
+    public static final int NOT = 7;
+    public static final int NEG = 8;
+    // binary operators
+    public static final int OR = 9;
+    public static final int AND = 10;
+    public static final int LT = 11;
+    public static final int GT = 12;
+    public static final int LE = 13;
+    public static final int GE = 14;
+    public static final int EQ = 15;
+    public static final int NE = 16;
+    public static final int ADD = 17;
+    public static final int SUB = 18;
+    public static final int MUL = 19;
+    public static final int DIV = 20;
+    public static final int MOD = 21;
+    // base[index] / base{index}, STORE/BYTE_STORE also carry the stored value in rhs
+    public static final int INDEX = 22;
+    public static final int BYTE_INDEX = 23;
+    public static final int STORE = 24;
+    public static final int BYTE_STORE = 25;
+
+    public final int kind;
+    // operand of NOT/NEG, left operand, base of an indexing
+    public Expr left;
+    // right operand, index
+    public Expr right;
+    // assigned or stored value
+    public Expr rhs;
+    public Expr[] args;
+    // NUMBER, CHAR: code of the character or -1 if unknown
+    public long number;
+    public BigInteger big;
+    // CHAR/STRING: token holding the literal
+    public int token;
+    // LOCAL/GLOBAL/ASSIGN target, CALL callee
+    public Symbol symbol;
+
+    public Expr(int kind) {
+        this.kind = kind;
+    }
+
+    public static Expr number(long value) {
+        Expr e = new Expr(NUMBER);
+        e.number = value;
+        return e;
+    }
+
+    public static Expr unary(int kind, Expr operand) {
+        Expr e = new Expr(kind);
+        e.left = operand;
+        return e;
+    }
+
+    public static Expr binary(int kind, Expr left, Expr right) {
+        Expr e = new Expr(kind);
+        e.left = left;
+        e.right = right;
+        return e;
+    }
+
+    public static Expr variable(Symbol symbol) {
+        Expr e = new Expr(symbol.kind == Symbol.LOCAL ? LOCAL : GLOBAL);
+        e.symbol = symbol;
+        return e;
+    }
+
+    public boolean isBinary() {
+        return kind >= OR && kind <= MOD;
+    }
+
+    public boolean isComparison() {
+        return kind >= LT && kind <= NE;
+    }
+
+    /**
+     * @return the operator giving the same result with the operands exchanged
+     */
+    public static int swapped(int kind) {
+        switch (kind) {
+            case Expr.LT:
+                return Expr.GT;
+            case Expr.GT:
+                return Expr.LT;
+            case Expr.LE:
+                return Expr.GE;
+            case Expr.GE:
+                return Expr.LE;
+            default:
+                return kind;
+        }
+    }
+
+    /**
+     * @return the comparison that is true exactly when {@code kind} is false
+     */
+    public static int inverse(int kind) {
+        switch (kind) {
+            case Expr.LT:
+                return Expr.GE;
+            case Expr.GT:
+                return Expr.LE;
+            case Expr.LE:
+                return Expr.GT;
+            case Expr.GE:
+                return Expr.LT;
+            case Expr.EQ:
+                return Expr.NE;
+            case Expr.NE:
+                return Expr.EQ;
+            default:
+                throw new IllegalArgumentException("comparison " + kind);
+        }
+    }
+
+    /**
+     * @return true for a number or character literal whose value is known at compile time
+     */
+    public boolean isConstant() {
+        return kind == NUMBER ? big == null : kind == CHAR && number >= 0;
+    }
+
+    public boolean isConstant(long value) {
+        return isConstant() && number == value;
+    }
+
+    /**
+     * @return true if evaluating the expression may write a variable or memory, or call a function
+     */
+    public boolean hasSideEffects() {
+        switch (kind) {
+            case ASSIGN:
+            case CALL:
+            case STORE:
+            case BYTE_STORE:
+                return true;
+            default:
+                return left != null && left.hasSideEffects() || right != null && right.hasSideEffects();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.Insn.Operand;
+
+import java.util.List;
+
+/**
+ * Frame-pointer omission for leaf functions.
+ * <p>
+ * A function that calls nothing (a tail call aside) and never touches {@code rsp} after its prologue keeps its
+ * locals and saved registers in the red zone, the 128 bytes below {@code rsp} the ABI reserves for it, and
+ * addresses them relative to {@code rsp}: neither {@code push rbp; mov rbp, rsp}, the stack adjustment nor
+ * {@code leave} is needed.
+ */
+final class FramePointer {
+    private static final int RED_ZONE = 128;
+
+    private FramePointer() {
+    }
+
+    /**
+     * Rewrites the recorded instructions of one function.
+     *
+     * @return true if the frame pointer was dropped
+     */
+    static boolean omit(List<Insn> insns) {
+        int prologue = -1;
+        for (int i = 0; i + 1 < insns.size(); i++) {
+            if (insns.get(i).is("push") && insns.get(i).operands[0].isReg("rbp")) {
+                prologue = i;
+                break;
+            }
+        }
+        if (prologue < 0 || !insns.get(prologue + 1).is("mov") || !insns.get(prologue + 1).operands[0].isReg("rbp")) {
+            return false;
+        }
+        int body = prologue + 2;
+        long frame = 0;
+        if (body < insns.size()) {
+            Insn sub = insns.get(body);
+            if (sub.is("sub") && sub.operands[0].isReg("rsp") && sub.operands[1].kind == Operand.IMM) {
+                frame = sub.operands[1].value;
+                body++;
+            }
+        }
+        // the locals start below the return address
+        if (frame + 8 > RED_ZONE) {
+            return false;
+        }
+        for (int i = body; i < insns.size(); i++) {
+            Insn insn = insns.get(i);
+            if (insn.kind == Insn.LINE) {
+                return false;
+            }
+            if (insn.kind != Insn.OP || insn.isDirective() || insn.is("leave")) {
+                continue;
+            }
+            if (insn.is("call") || insn.is("push") || insn.is("pop") || insn.mentions("rsp")) {
+                return false;
+            }
+            for (Operand o : insn.operands) {
+                if (o.kind == Operand.REG && o.mentions("rbp")) {
+                    return false;
+                }
+            }
+        }
+
+        for (int i = insns.size() - 1; i >= body; i--) {
+            Insn insn = insns.get(i);
+            if (insn.is("leave")) {
+                insns.remove(i);
+                continue;
+            }
+            for (int j = 0; j < insn.operands.length; j++) {
+                Operand o = insn.operands[j];
+                if (o.kind == Operand.MEM && o.name.equals("rbp")) {
+                    Operand m = new Operand(Operand.MEM);
+                    m.size = o.size;
+                    m.name = "rsp";
+                    m.index = o.index;
+                    m.scale = o.scale;
+                    m.value = o.value - 8;
+                    insn.operands[j] = m;
+                }
+            }
+        }
+        insns.subList(prologue, body).clear();
+        return true;
+    }
+}
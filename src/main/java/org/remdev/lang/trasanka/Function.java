@@ -0,0 +1,36 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Function of the IR together with the global variables declared right before it in the source.
+ */
+public final class Function {
+    public final Symbol symbol;
+    public final List<Symbol> globals = new ArrayList<>();
+    // parameters first, then the declared locals
+    public final List<Symbol> locals = new ArrayList<>();
+    public int params;
+    // bytes of stack taken by the locals
+    public int frame;
+    public List<Stmt> body;
+
+    public Function(Symbol symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * @return a new unnamed local placed below the others in the frame
+     */
+    public Symbol newLocal() {
+        frame += 8;
+        Symbol local = new Symbol(-1, Symbol.LOCAL);
+        local.offset = frame;
+        local.index = locals.size();
+        locals.add(local);
+        return local;
+    }
+}
@@ -0,0 +1,675 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inlining of small functions at their call sites.
+ * <p>
+ * A callee is inlined when it is defined in the unit, cannot reach itself through calls, has no asm block (asm
+ * addresses the locals by their offsets), is passed no more arguments than it has parameters and is small.
+ * Statements and expression nodes count alike towards the size. The inlined body may be no larger than the call
+ * sequence it replaces, {@link #CALL_COST} nodes plus one per argument, since the caller's copy of the body is
+ * code the call sites used to share. Binding the arguments counts {@link #BINDING_COST} for every parameter that
+ * needs a local of the caller, be it assigned by the callee, passed an argument that is neither a constant nor
+ * a local, or assigned with its argument missing. A callee that calls nothing is allowed {@link #LEAF_BONUS}
+ * more, the caller no longer keeping its values clear of the registers a call clobbers, and every constant
+ * argument {@link #CONSTANT_BONUS} more, as the folder propagates it into the inlined body afterwards. Callees
+ * are done before their callers, so whatever a callee has inlined goes along with it.
+ * <p>
+ * A call that is a statement of its own, the value assigned by one or the value of a return is replaced by the
+ * body of the callee. Its parameters and locals become new locals of the caller; a constant or a local of the
+ * caller is used directly for a parameter the callee never assigns. Unless the call is returned, the returns
+ * of the callee have to be its last statement or the last statements of the branches of a trailing if.
+ * <p>
+ * Anywhere else, a callee that is a single {@code return e} is substituted into the expression when its
+ * arguments have no side effects and {@code e} does not write what they read.
+ */
+public final class Inliner {
+    private static final int CALL_COST = 2;
+    private static final int LEAF_BONUS = 4;
+    private static final int BINDING_COST = 2;
+    private static final int CONSTANT_BONUS = 4;
+
+    // what becomes of the returns of an inlined body
+    private static final int DISCARD = 0;
+    private static final int ASSIGN = 1;
+    private static final int RETURN = 2;
+
+    private final Map<Symbol, Function> functions = new HashMap<>();
+    // functions that may call themselves, directly or not
+    private final Set<Function> recursive = new HashSet<>();
+    private final Set<Function> done = new HashSet<>();
+
+    private Function caller;
+    // locals of the caller taken by the inlined bodies of each callee; the bodies never overlap, so every site
+    // of a callee shares them
+    private final Map<Function, Symbol[]> taken = new HashMap<>();
+    private int inlined;
+
+    // the call being inlined: locals of the callee in the caller, arguments standing for parameters
+    private Symbol[] locals;
+    private Expr[] direct;
+
+    private Inliner(Unit unit) {
+        for (Function function : unit.functions) {
+            functions.put(function.symbol, function);
+        }
+        for (Function function : unit.functions) {
+            Set<Function> reached = new HashSet<>();
+            reach(function, reached);
+            if (reached.contains(function)) {
+                recursive.add(function);
+            }
+        }
+    }
+
+    public static void inline(Unit unit, Options options) {
+        Inliner inliner = new Inliner(unit);
+        for (Function function : unit.functions) {
+            inliner.visit(function, unit, options);
+        }
+    }
+
+    /**
+     * Inlines into the callees of {@code function} and then into the function itself.
+     */
+    private void visit(Function function, Unit unit, Options options) {
+        if (!done.add(function)) {
+            return;
+        }
+        for (Function callee : callees(function)) {
+            visit(callee, unit, options);
+        }
+        caller = function;
+        taken.clear();
+        inlined = 0;
+        statementList(function.body);
+        if (options.stats) {
+            options.statsOut.println("inlined " + unit.name(function.symbol) + ": " + inlined);
+        }
+    }
+
+    private void reach(Function function, Set<Function> reached) {
+        for (Function callee : callees(function)) {
+            if (reached.add(callee)) {
+                reach(callee, reached);
+            }
+        }
+    }
+
+    private List<Function> callees(Function function) {
+        List<Expr> all = new ArrayList<>();
+        expressions(function.body, all);
+        List<Function> result = new ArrayList<>();
+        for (Expr e : all) {
+            calls(e, result);
+        }
+        return result;
+    }
+
+    private void calls(Expr e, List<Function> result) {
+        if (e.kind == Expr.CALL && functions.containsKey(e.symbol)) {
+            result.add(functions.get(e.symbol));
+        }
+        if (e.left != null) calls(e.left, result);
+        if (e.right != null) calls(e.right, result);
+        if (e.rhs != null) calls(e.rhs, result);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                calls(arg, result);
+            }
+        }
+    }
+
+    private void statementList(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt s = statements.get(i);
+            List<Stmt> body = site(s);
+            if (body != null) {
+                statements.remove(i);
+                statements.addAll(i, body);
+                i += body.size() - 1;
+                inlined++;
+                continue;
+            }
+            switch (s.kind) {
+                case Stmt.IF:
+                    for (int j = 0; j < s.conditions.size(); j++) {
+                        s.conditions.set(j, expression(s.conditions.get(j)));
+                    }
+                    for (List<Stmt> branch : s.branches) {
+                        statementList(branch);
+                    }
+                    if (s.otherwise != null) {
+                        statementList(s.otherwise);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    s.expr = expression(s.expr);
+                    statementList(s.body);
+                    break;
+                case Stmt.RETURN:
+                case Stmt.EXPR:
+                    if (s.expr != null) {
+                        s.expr = expression(s.expr);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the statements replacing {@code s} if it is a call that gets inlined, otherwise null
+     */
+    private List<Stmt> site(Stmt s) {
+        if (s.kind != Stmt.EXPR && s.kind != Stmt.RETURN || s.expr == null) {
+            return null;
+        }
+        Expr call = s.expr;
+        Symbol target = null;
+        if (call.kind == Expr.ASSIGN) {
+            target = call.symbol;
+            call = call.rhs;
+        }
+        Function callee = call.kind == Expr.CALL ? candidate(call) : null;
+        if (callee == null) {
+            return null;
+        }
+        int mode = s.kind == Stmt.RETURN ? RETURN : target != null ? ASSIGN : DISCARD;
+        if (mode != RETURN && !tailReturns(callee.body)) {
+            return null;
+        }
+
+        Expr[] args = call.args;
+        for (int j = 0; j < args.length; j++) {
+            args[j] = expression(args[j]);
+        }
+        List<Stmt> result = new ArrayList<>();
+        BitSet assigned = new BitSet();
+        assigned(callee.body, assigned);
+        int[] uses = new int[callee.locals.size()];
+        reads(callee.body, uses);
+        locals = taken.get(callee);
+        if (locals == null) {
+            locals = new Symbol[uses.length];
+            taken.put(callee, locals);
+        }
+        direct = new Expr[uses.length];
+        for (int j = 0; j < callee.params; j++) {
+            Expr arg = j < args.length ? args[j] : null;
+            if (assigned.get(j)) {
+                if (arg != null) {
+                    result.add(assign(local(j), arg));
+                }
+            } else if (arg == null) {
+                // a parameter without an argument holds garbage, zero is as good
+                direct[j] = Expr.number(0);
+            } else if (arg.isConstant() || arg.kind == Expr.STRING && uses[j] <= 1
+                    || arg.kind == Expr.LOCAL && !writtenAfter(args, j)) {
+                direct[j] = arg;
+            } else {
+                result.add(assign(local(j), arg));
+            }
+        }
+        translate(callee.body, mode, target, result);
+        if (mode == RETURN && (result.isEmpty() || result.get(result.size() - 1).kind != Stmt.RETURN)) {
+            result.add(new Stmt(Stmt.RETURN));
+        }
+        locals = null;
+        direct = null;
+        return result;
+    }
+
+    /**
+     * Counts the reads of each local.
+     */
+    private static void reads(List<Stmt> statements, int[] uses) {
+        List<Expr> all = new ArrayList<>();
+        expressions(statements, all);
+        for (Expr e : all) {
+            reads(e, uses);
+        }
+    }
+
+    private static void reads(Expr e, int[] uses) {
+        if (e.kind == Expr.LOCAL) {
+            uses[e.symbol.index]++;
+        }
+        if (e.left != null) reads(e.left, uses);
+        if (e.right != null) reads(e.right, uses);
+        if (e.rhs != null) reads(e.rhs, uses);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                reads(arg, uses);
+            }
+        }
+    }
+
+    /**
+     * @return true if an argument after {@code args[j]}, a local, assigns it
+     */
+    private static boolean writtenAfter(Expr[] args, int j) {
+        for (int k = j + 1; k < args.length; k++) {
+            if (Effects.of(args[k]).writesLocals.get(args[j].symbol.index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Substitutes the body of a callee that is a single return into the call, then into its operands.
+     */
+    private Expr expression(Expr e) {
+        if (e.left != null) e.left = expression(e.left);
+        if (e.right != null) e.right = expression(e.right);
+        if (e.rhs != null) e.rhs = expression(e.rhs);
+        if (e.args != null) {
+            for (int i = 0; i < e.args.length; i++) {
+                e.args[i] = expression(e.args[i]);
+            }
+        }
+        if (e.kind != Expr.CALL) {
+            return e;
+        }
+        Function callee = candidate(e);
+        if (callee == null || callee.body.size() != 1) {
+            return e;
+        }
+        Stmt s = callee.body.get(0);
+        if (s.kind != Stmt.RETURN || s.expr == null) {
+            return e;
+        }
+        int[] uses = new int[callee.locals.size()];
+        if (!uses(s.expr, uses, e.args.length)) {
+            return e;
+        }
+        for (int j = 0; j < e.args.length; j++) {
+            Expr arg = e.args[j];
+            if (arg.hasSideEffects() || !Effects.independent(arg, s.expr) || uses[j] > 1 && !isLeaf(arg)) {
+                return e;
+            }
+        }
+        locals = new Symbol[uses.length];
+        direct = e.args;
+        Expr result = translate(s.expr);
+        locals = null;
+        direct = null;
+        inlined++;
+        return result;
+    }
+
+    /**
+     * Counts the reads of each local in {@code e}.
+     *
+     * @return false if {@code e} assigns a local or reads one that is not among the first {@code params}
+     */
+    private static boolean uses(Expr e, int[] uses, int params) {
+        if (e.kind == Expr.ASSIGN && e.symbol.kind == Symbol.LOCAL) {
+            return false;
+        }
+        if (e.kind == Expr.LOCAL) {
+            if (e.symbol.index >= params) {
+                return false;
+            }
+            uses[e.symbol.index]++;
+        }
+        if (e.left != null && !uses(e.left, uses, params)) return false;
+        if (e.right != null && !uses(e.right, uses, params)) return false;
+        if (e.rhs != null && !uses(e.rhs, uses, params)) return false;
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                if (!uses(arg, uses, params)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLeaf(Expr e) {
+        return e.kind == Expr.LOCAL || e.kind == Expr.GLOBAL || e.isConstant();
+    }
+
+    /**
+     * @return the function called by {@code call} if it may be inlined there, otherwise null
+     */
+    private Function candidate(Expr call) {
+        Function callee = functions.get(call.symbol);
+        if (callee == null || recursive.contains(callee) || call.args.length > callee.params) {
+            return null;
+        }
+        int limit = CALL_COST + call.args.length + (callsNothing(callee.body) ? LEAF_BONUS : 0);
+        for (Expr arg : call.args) {
+            if (arg.isConstant()) {
+                limit += CONSTANT_BONUS;
+            }
+        }
+        int size = size(callee.body);
+        if (size < 0) {
+            return null;
+        }
+        return size + binding(callee, call.args) <= limit ? callee : null;
+    }
+
+    /**
+     * @return nodes binding the arguments adds to the inlined body, {@link #BINDING_COST} for every parameter that
+     *         becomes a local of the caller rather than standing for its argument
+     */
+    private static int binding(Function callee, Expr[] args) {
+        BitSet assigned = new BitSet();
+        assigned(callee.body, assigned);
+        int[] uses = new int[callee.locals.size()];
+        reads(callee.body, uses);
+        int n = 0;
+        for (int j = 0; j < callee.params; j++) {
+            Expr arg = j < args.length ? args[j] : null;
+            if (assigned.get(j) || arg != null && !arg.isConstant() && !(arg.kind == Expr.STRING && uses[j] <= 1)
+                    && !(arg.kind == Expr.LOCAL && !writtenAfter(args, j))) {
+                n += BINDING_COST;
+            }
+        }
+        return n;
+    }
+
+    private static boolean callsNothing(List<Stmt> statements) {
+        List<Expr> all = new ArrayList<>();
+        expressions(statements, all);
+        for (Expr e : all) {
+            if (calls(e)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean calls(Expr e) {
+        if (e.kind == Expr.CALL) {
+            return true;
+        }
+        if (e.left != null && calls(e.left) || e.right != null && calls(e.right) || e.rhs != null && calls(e.rhs)) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of statements and expression nodes, -1 if there is an asm block
+     */
+    private static int size(List<Stmt> statements) {
+        int n = 0;
+        for (Stmt s : statements) {
+            n++;
+            switch (s.kind) {
+                case Stmt.ASM:
+                    return -1;
+                case Stmt.IF: {
+                    for (Expr condition : s.conditions) {
+                        n += size(condition);
+                    }
+                    for (List<Stmt> branch : s.branches) {
+                        int m = size(branch);
+                        if (m < 0) {
+                            return -1;
+                        }
+                        n += m;
+                    }
+                    int m = s.otherwise != null ? size(s.otherwise) : 0;
+                    if (m < 0) {
+                        return -1;
+                    }
+                    n += m;
+                    break;
+                }
+                case Stmt.WHILE: {
+                    int m = size(s.body);
+                    if (m < 0) {
+                        return -1;
+                    }
+                    n += size(s.expr) + m;
+                    break;
+                }
+                default:
+                    if (s.expr != null) {
+                        n += size(s.expr);
+                    }
+                    break;
+            }
+        }
+        return n;
+    }
+
+    private static int size(Expr e) {
+        int n = 1;
+        if (e.left != null) n += size(e.left);
+        if (e.right != null) n += size(e.right);
+        if (e.rhs != null) n += size(e.rhs);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                n += size(arg);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return true if every return is the last statement of the body or of a branch of an if ending the body
+     */
+    private static boolean tailReturns(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt s = statements.get(i);
+            boolean last = i == statements.size() - 1;
+            switch (s.kind) {
+                case Stmt.RETURN:
+                    if (!last) {
+                        return false;
+                    }
+                    break;
+                case Stmt.IF:
+                    for (List<Stmt> branch : s.branches) {
+                        if (last ? !tailReturns(branch) : returns(branch)) {
+                            return false;
+                        }
+                    }
+                    if (s.otherwise != null && (last ? !tailReturns(s.otherwise) : returns(s.otherwise))) {
+                        return false;
+                    }
+                    break;
+                case Stmt.WHILE:
+                    if (returns(s.body)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static boolean returns(List<Stmt> statements) {
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.RETURN:
+                    return true;
+                case Stmt.IF:
+                    for (List<Stmt> branch : s.branches) {
+                        if (returns(branch)) {
+                            return true;
+                        }
+                    }
+                    if (s.otherwise != null && returns(s.otherwise)) {
+                        return true;
+                    }
+                    break;
+                case Stmt.WHILE:
+                    if (returns(s.body)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private static void assigned(List<Stmt> statements, BitSet result) {
+        List<Expr> all = new ArrayList<>();
+        expressions(statements, all);
+        Effects effects = new Effects();
+        for (Expr e : all) {
+            effects.collect(e);
+        }
+        result.or(effects.writesLocals);
+    }
+
+    private static void expressions(List<Stmt> statements, List<Expr> result) {
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.IF:
+                    result.addAll(s.conditions);
+                    for (List<Stmt> branch : s.branches) {
+                        expressions(branch, result);
+                    }
+                    if (s.otherwise != null) {
+                        expressions(s.otherwise, result);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    result.add(s.expr);
+                    expressions(s.body, result);
+                    break;
+                default:
+                    if (s.expr != null) {
+                        result.add(s.expr);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Appends a copy of the body of the callee to {@code result}, its locals replaced and its returns turned into
+     * what {@code mode} asks for.
+     */
+    private void translate(List<Stmt> statements, int mode, Symbol target, List<Stmt> result) {
+        for (Stmt s : statements) {
+            Stmt c = new Stmt(s.kind);
+            switch (s.kind) {
+                case Stmt.IF:
+                    c.conditions = new ArrayList<>(s.conditions.size());
+                    c.branches = new ArrayList<>(s.branches.size());
+                    for (int j = 0; j < s.conditions.size(); j++) {
+                        c.conditions.add(translate(s.conditions.get(j)));
+                        List<Stmt> branch = new ArrayList<>();
+                        translate(s.branches.get(j), mode, target, branch);
+                        c.branches.add(branch);
+                    }
+                    if (s.otherwise != null) {
+                        c.otherwise = new ArrayList<>();
+                        translate(s.otherwise, mode, target, c.otherwise);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    c.expr = translate(s.expr);
+                    c.body = new ArrayList<>();
+                    translate(s.body, mode, target, c.body);
+                    break;
+                case Stmt.RETURN:
+                    if (mode == ASSIGN && s.expr != null) {
+                        c = assign(target, translate(s.expr));
+                    } else if (mode == DISCARD && s.expr != null && s.expr.hasSideEffects()) {
+                        c = Stmt.of(Stmt.EXPR, translate(s.expr));
+                    } else if (mode != RETURN) {
+                        continue;
+                    } else if (s.expr != null) {
+                        c.expr = translate(s.expr);
+                    }
+                    break;
+                default:
+                    if (s.expr != null) {
+                        c.expr = translate(s.expr);
+                    }
+                    break;
+            }
+            result.add(c);
+        }
+    }
+
+    /**
+     * @return a copy of an expression of the callee, with its locals replaced
+     */
+    private Expr translate(Expr e) {
+        if (e.kind == Expr.LOCAL && direct != null && e.symbol.index < direct.length
+                && direct[e.symbol.index] != null) {
+            return copy(direct[e.symbol.index]);
+        }
+        Expr c = new Expr(e.kind);
+        c.number = e.number;
+        c.big = e.big;
+        c.token = e.token;
+        c.symbol = e.symbol;
+        if (e.symbol != null && e.symbol.kind == Symbol.LOCAL) {
+            c.symbol = local(e.symbol.index);
+        }
+        if (e.left != null) c.left = translate(e.left);
+        if (e.right != null) c.right = translate(e.right);
+        if (e.rhs != null) c.rhs = translate(e.rhs);
+        if (e.args != null) {
+            c.args = new Expr[e.args.length];
+            for (int i = 0; i < e.args.length; i++) {
+                c.args[i] = translate(e.args[i]);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @return a copy of an expression of the caller
+     */
+    private static Expr copy(Expr e) {
+        Expr c = new Expr(e.kind);
+        c.number = e.number;
+        c.big = e.big;
+        c.token = e.token;
+        c.symbol = e.symbol;
+        if (e.left != null) c.left = copy(e.left);
+        if (e.right != null) c.right = copy(e.right);
+        if (e.rhs != null) c.rhs = copy(e.rhs);
+        if (e.args != null) {
+            c.args = new Expr[e.args.length];
+            for (int i = 0; i < e.args.length; i++) {
+                c.args[i] = copy(e.args[i]);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @return the local of the caller standing for local {@code index} of the callee, allocated on first use
+     */
+    private Symbol local(int index) {
+        if (locals[index] == null) {
+            locals[index] = caller.newLocal();
+        }
+        return locals[index];
+    }
+
+    private static Stmt assign(Symbol symbol, Expr value) {
+        Expr assign = new Expr(Expr.ASSIGN);
+        assign.symbol = symbol;
+        assign.rhs = value;
+        return Stmt.of(Stmt.EXPR, assign);
+    }
+}
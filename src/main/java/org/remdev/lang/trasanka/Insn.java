@@ -0,0 +1,212 @@
+package org.remdev.lang.trasanka;
+
+/**
+ * One line of the generated assembly kept in structured form: an instruction or directive with its operands,
+ * a label, or a raw line of an {@code asm:} block.
+ */
+public final class Insn {
+    public static final int OP = 0;
+    public static final int LABEL = 1;
+    public static final int LINE = 2;
+
+    public static final class Operand {
+        public static final int REG = 0;
+        public static final int IMM = 1;
+        public static final int SYM = 2;
+        public static final int MEM = 3;
+        // prefix + number: a local label reference and OFFSET of a local label
+        public static final int TARGET = 4;
+        public static final int OFFSET = 5;
+        // symbol[rip]
+        public static final int RIP = 6;
+
+        public final int kind;
+        // REG: register, SYM/RIP: symbol or text, MEM: base register, TARGET/OFFSET: prefix of the label
+        public String name;
+        // MEM: index register or null
+        public String index;
+        public int scale;
+        // MEM/RIP: QWORD/BYTE
+        public String size;
+        // IMM: value, MEM: displacement, TARGET/OFFSET: number of the label
+        public long value;
+
+        Operand(int kind) {
+            this.kind = kind;
+        }
+
+        public static Operand reg(String name) {
+            Operand o = new Operand(REG);
+            o.name = name;
+            return o;
+        }
+
+        public static Operand imm(long value) {
+            Operand o = new Operand(IMM);
+            o.value = value;
+            return o;
+        }
+
+        public boolean isReg(String name) {
+            return kind == REG && this.name.equals(name);
+        }
+
+        public boolean isImm(long value) {
+            return kind == IMM && this.value == value;
+        }
+
+        /**
+         * @return true if the operand reads or writes a register of the same family as {@code reg}
+         */
+        public boolean mentions(String reg) {
+            int family = family(reg);
+            switch (kind) {
+                case REG:
+                    return family(name) == family;
+                case MEM:
+                    return family(name) == family || index != null && family(index) == family;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static final Operand[] NO_OPERANDS = new Operand[0];
+
+    private static final String[] REGISTERS = {
+            "rax", "eax", "ax", "al",
+            "rcx", "ecx", "cx", "cl",
+            "rdx", "edx", "dx", "dl",
+            "rbx", "ebx", "bx", "bl",
+            "rsp", "esp", "sp", "spl",
+            "rbp", "ebp", "bp", "bpl",
+            "rsi", "esi", "si", "sil",
+            "rdi", "edi", "di", "dil",
+    };
+
+    public final int kind;
+    // OP: mnemonic or directive, LABEL: name or prefix of the label
+    public String op;
+    // LABEL: number appended to the prefix, -1 for a named label
+    public int number = -1;
+    public Operand[] operands = NO_OPERANDS;
+    // LINE: the text
+    public String text;
+
+    public Insn(int kind) {
+        this.kind = kind;
+    }
+
+    public static Insn op(String op, Operand... operands) {
+        Insn insn = new Insn(OP);
+        insn.op = op;
+        insn.operands = operands;
+        return insn;
+    }
+
+    public boolean is(String op) {
+        return kind == OP && this.op.equals(op);
+    }
+
+    public boolean isLabel(String prefix, long number) {
+        return kind == LABEL && this.number == number && op.equals(prefix);
+    }
+
+    public boolean isDirective() {
+        return kind == OP && op.charAt(0) == '.';
+    }
+
+    public boolean mentions(String reg) {
+        for (Operand o : operands) {
+            if (o.mentions(reg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of the register family ({@code rax}, {@code eax}, {@code ax} and {@code al} are one family),
+     * r8..r15 are 8..15
+     */
+    public static int family(String reg) {
+        if (reg.charAt(0) == 'r' && reg.length() >= 2 && Character.isDigit(reg.charAt(1))) {
+            int n = reg.charAt(1) - '0';
+            if (reg.length() > 2 && Character.isDigit(reg.charAt(2))) {
+                n = n * 10 + reg.charAt(2) - '0';
+            }
+            return n;
+        }
+        for (int i = 0; i < REGISTERS.length; i++) {
+            if (REGISTERS[i].equals(reg)) {
+                return i / 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the 64-bit register of the family of {@code reg}
+     */
+    public static String qword(String reg) {
+        int family = family(reg);
+        return family >= 8 ? "r" + family : family >= 0 ? REGISTERS[family * 4] : reg;
+    }
+
+    /**
+     * @return the 32-bit name of a 64-bit register
+     */
+    public static String dword(String reg) {
+        int family = family(reg);
+        return family >= 8 ? "r" + family + "d" : REGISTERS[family * 4 + 1];
+    }
+
+    void emit(AsmEmitter out) {
+        switch (kind) {
+            case LABEL:
+                if (number < 0) {
+                    out.label(op);
+                } else {
+                    out.label(op, number);
+                }
+                return;
+            case LINE:
+                out.line(text);
+                return;
+            default:
+                out.op(op);
+                for (Operand o : operands) {
+                    switch (o.kind) {
+                        case Operand.REG:
+                            out.reg(o.name);
+                            break;
+                        case Operand.IMM:
+                            out.imm(o.value);
+                            break;
+                        case Operand.SYM:
+                            out.sym(o.name);
+                            break;
+                        case Operand.MEM:
+                            if (o.index == null) {
+                                out.mem(o.size, o.name, o.value);
+                            } else {
+                                out.mem(o.size, o.name, o.index, o.scale, o.value);
+                            }
+                            break;
+                        case Operand.RIP:
+                            out.rip(o.size, o.name);
+                            break;
+                        case Operand.TARGET:
+                            out.target(o.name, (int) o.value);
+                            break;
+                        case Operand.OFFSET:
+                            out.offset(o.name, (int) o.value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("operand " + o.kind);
+                    }
+                }
+                out.end();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.Insn.Operand;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link AsmEmitter} that records the instructions instead of printing them, so that later passes can rewrite
+ * them before they are {@link #replay(AsmEmitter) replayed} into the real output.
+ */
+public final class InsnList implements AsmEmitter {
+    public final List<Insn> insns = new ArrayList<>();
+    private final List<Operand> operands = new ArrayList<>(3);
+    private Insn current;
+
+    @Override
+    public AsmEmitter op(String mnemonic) {
+        current = new Insn(Insn.OP);
+        current.op = mnemonic;
+        return this;
+    }
+
+    @Override
+    public AsmEmitter reg(String name) {
+        operands.add(Operand.reg(name));
+        return this;
+    }
+
+    @Override
+    public AsmEmitter imm(long value) {
+        operands.add(Operand.imm(value));
+        return this;
+    }
+
+    @Override
+    public AsmEmitter sym(CharSequence text) {
+        Operand o = new Operand(Operand.SYM);
+        o.name = text.toString();
+        operands.add(o);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter sym(char[] text, int offset, int length) {
+        return sym(new String(text, offset, length));
+    }
+
+    @Override
+    public AsmEmitter target(String prefix, int n) {
+        Operand o = new Operand(Operand.TARGET);
+        o.name = prefix;
+        o.value = n;
+        operands.add(o);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter offset(String prefix, int n) {
+        Operand o = new Operand(Operand.OFFSET);
+        o.name = prefix;
+        o.value = n;
+        operands.add(o);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, long disp) {
+        Operand o = new Operand(Operand.MEM);
+        o.size = size;
+        o.name = base;
+        o.value = disp;
+        operands.add(o);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, String index, int scale) {
+        return mem(size, base, index, scale, 0);
+    }
+
+    @Override
+    public AsmEmitter mem(String size, String base, String index, int scale, long disp) {
+        Operand o = new Operand(Operand.MEM);
+        o.size = size;
+        o.name = base;
+        o.index = index;
+        o.scale = scale;
+        o.value = disp;
+        operands.add(o);
+        return this;
+    }
+
+    @Override
+    public AsmEmitter rip(String size, CharSequence symbol) {
+        Operand o = new Operand(Operand.RIP);
+        o.size = size;
+        o.name = symbol.toString();
+        operands.add(o);
+        return this;
+    }
+
+    @Override
+    public void end() {
+        current.operands = operands.toArray(new Operand[operands.size()]);
+        operands.clear();
+        insns.add(current);
+        current = null;
+    }
+
+    @Override
+    public void label(CharSequence name) {
+        Insn insn = new Insn(Insn.LABEL);
+        insn.op = name.toString();
+        insns.add(insn);
+    }
+
+    @Override
+    public void label(String prefix, int n) {
+        Insn insn = new Insn(Insn.LABEL);
+        insn.op = prefix;
+        insn.number = n;
+        insns.add(insn);
+    }
+
+    @Override
+    public void line(CharSequence text) {
+        Insn insn = new Insn(Insn.LINE);
+        insn.text = text.toString();
+        insns.add(insn);
+    }
+
+    @Override
+    public void line(char[] text, int offset, int length) {
+        line(new String(text, offset, length));
+    }
+
+    /**
+     * Writes the recorded instructions to {@code out} and forgets them.
+     */
+    public void replay(AsmEmitter out) {
+        for (Insn insn : insns) {
+            insn.emit(out);
+        }
+        insns.clear();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,514 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.ClassFile.Code;
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.remdev.lang.trasanka.ClassFile.*;
+
+/**
+ * Back end compiling a unit into a JVM class, so programs run in-process at the speed of the JIT without an
+ * assembler and a linker.
+ * <p>
+ * Every function becomes a static method taking and returning longs and every global a static long field of the
+ * class {@value #CLASS_NAME}. Memory is {@link Memory}, a string literal is placed there by the static initializer
+ * and read from a field afterwards. Functions the unit does not define are taken from {@link Libc}.
+ * {@code asm:} blocks cannot be run.
+ */
+public final class JvmBackend {
+    public static final String CLASS_NAME = "Program";
+    private static final String MEMORY = "org/remdev/lang/trasanka/Memory";
+    private static final String LIBC = "org/remdev/lang/trasanka/Libc";
+    // deeply recursive programs need about the stack of a native process
+    private static final long STACK_SIZE = 1L << 30;
+
+    private final Options options;
+    private Unit unit;
+    private TokenBuffer tokens;
+    private ClassFile file;
+    private Code code;
+    private final Map<String, Function> functions = new HashMap<>();
+    // literal text -> name of its field
+    private final Map<String, String> strings = new LinkedHashMap<>();
+
+    private int[] continueLabels = new int[16];
+    private int[] breakLabels = new int[16];
+    private int loopLevel = -1;
+
+    public JvmBackend(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * @return the class file of the unit
+     */
+    public byte[] generate(Unit unit) {
+        this.unit = unit;
+        this.tokens = unit.tokens;
+        file = new ClassFile(CLASS_NAME);
+        for (Function function : unit.functions) {
+            functions.put(unit.name(function.symbol), function);
+        }
+        for (Function function : unit.functions) {
+            for (Symbol global : function.globals) {
+                file.field(ACC_PUBLIC | ACC_STATIC, unit.name(global), "J");
+            }
+            function(function);
+        }
+        if (!strings.isEmpty()) {
+            code = file.method(ACC_STATIC, "<clinit>", "()V");
+            for (Map.Entry<String, String> s : strings.entrySet()) {
+                file.field(ACC_STATIC, s.getValue(), "J");
+                code.pushString(new String(Lexer.stringValue(s.getKey()), StandardCharsets.ISO_8859_1));
+                code.op(INVOKESTATIC, file.methodRef(MEMORY, "literal", "(Ljava/lang/String;)J"), 1);
+                code.op(PUTSTATIC, file.fieldRef(CLASS_NAME, s.getValue(), "J"), -2);
+            }
+            code.op(RETURN, 0);
+        }
+        if (options.stats) {
+            options.statsOut.println("strings: " + strings.size());
+        }
+        return file.toByteArray();
+    }
+
+    /**
+     * @return the unit compiled and loaded by a class loader of its own
+     */
+    public Class<?> load(Unit unit) {
+        return new Loader().define(generate(unit));
+    }
+
+    /**
+     * Runs {@code main} of the unit, with the arguments in {@code argv} (the program name first), on a thread of
+     * its own with a stack the size of a native one.
+     *
+     * @return the exit status
+     */
+    public int run(Unit unit, String[] argv) throws Exception {
+        Class<?> program = load(unit);
+        Method main = null;
+        for (Method m : program.getMethods()) {
+            if (m.getName().equals("main") && m.getDeclaringClass() == program) {
+                main = m;
+            }
+        }
+        if (main == null) {
+            throw new IllegalArgumentException("нет функции main");
+        }
+        long address = Memory.argv(argv);
+        final Object[] args = new Object[main.getParameterCount()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = i == 0 ? (long) argv.length : i == 1 ? address : 0L;
+        }
+        final Method entry = main;
+        final long[] status = new long[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    status[0] = (Long) entry.invoke(null, args);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof Libc.Exit) {
+                        status[0] = ((Libc.Exit) e.getCause()).status;
+                    } else {
+                        failure[0] = e.getCause();
+                    }
+                } catch (Throwable th) {
+                    failure[0] = th;
+                }
+            }
+        }, "minilang", STACK_SIZE);
+        thread.start();
+        thread.join();
+        Libc.flushAll();
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] != null) {
+            throw (Error) failure[0];
+        }
+        return (int) status[0];
+    }
+
+    private void function(Function function) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < function.params; i++) {
+            descriptor.append('J');
+        }
+        code = file.method(ACC_PUBLIC | ACC_STATIC, unit.name(function.symbol), descriptor.append(")J").toString());
+        code.maxLocals = 2 * Math.max(function.locals.size(), function.params);
+        // the verifier wants every local written before it is read
+        for (int i = function.params; i < function.locals.size(); i++) {
+            code.pushLong(0);
+            code.local(LSTORE, 2 * i, -2);
+        }
+        statementList(function.body);
+        code.pushLong(0);
+        code.op(LRETURN, -2);
+    }
+
+    private void statementList(List<Stmt> statements) {
+        for (Stmt s : statements) {
+            statement(s);
+        }
+    }
+
+    private void statement(Stmt s) {
+        switch (s.kind) {
+            case Stmt.ASM:
+                throw new IllegalArgumentException("asm-блок нельзя выполнить на JVM");
+            case Stmt.IF: {
+                int end = code.newLabel();
+                int branches = s.conditions.size();
+                for (int i = 0; i < branches; i++) {
+                    int next = code.newLabel();
+                    branch(s.conditions.get(i), false, next);
+                    statementList(s.branches.get(i));
+                    if (i + 1 < branches || s.otherwise != null) {
+                        code.jump(GOTO, end, 0);
+                    }
+                    code.mark(next);
+                }
+                if (s.otherwise != null) {
+                    statementList(s.otherwise);
+                }
+                code.mark(end);
+                break;
+            }
+            case Stmt.WHILE: {
+                int top = code.newLabel();
+                int end = code.newLabel();
+                if (s.guard != null) {
+                    branch(s.guard, false, end);
+                }
+                if (s.setup != null) {
+                    statementList(s.setup);
+                }
+                enterLoop(s.guard != null ? code.newLabel() : top, end);
+                code.mark(top);
+                if (s.guard != null) {
+                    // rotated: the condition is tested at the bottom
+                    statementList(s.body);
+                    code.mark(continueLabels[loopLevel]);
+                    branch(s.expr, true, top);
+                } else {
+                    branch(s.expr, false, end);
+                    statementList(s.body);
+                    code.jump(GOTO, top, 0);
+                }
+                code.mark(end);
+                loopLevel--;
+                break;
+            }
+            case Stmt.BREAK:
+                code.jump(GOTO, breakLabels[loopLevel], 0);
+                break;
+            case Stmt.CONTINUE:
+                code.jump(GOTO, continueLabels[loopLevel], 0);
+                break;
+            case Stmt.RETURN:
+                if (s.expr != null) {
+                    expression(s.expr);
+                } else {
+                    code.pushLong(0);
+                }
+                code.op(LRETURN, -2);
+                break;
+            case Stmt.EXPR:
+                if (s.expr.kind == Expr.ASSIGN) {
+                    expression(s.expr.rhs);
+                    store(s.expr.symbol);
+                } else {
+                    expression(s.expr);
+                    code.op(POP2, -2);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("statement " + s.kind);
+        }
+    }
+
+    private void enterLoop(int continueLabel, int breakLabel) {
+        loopLevel++;
+        if (loopLevel == breakLabels.length) {
+            continueLabels = Arrays.copyOf(continueLabels, loopLevel * 2);
+            breakLabels = Arrays.copyOf(breakLabels, loopLevel * 2);
+        }
+        continueLabels[loopLevel] = continueLabel;
+        breakLabels[loopLevel] = breakLabel;
+    }
+
+    /**
+     * Jumps to {@code target} if {@code e} is non-zero ({@code when}) or zero.
+     */
+    private void branch(Expr e, boolean when, int target) {
+        if (e.isConstant()) {
+            if ((e.number != 0) == when) {
+                code.jump(GOTO, target, 0);
+            }
+            return;
+        }
+        if (e.kind == Expr.NOT) {
+            branch(e.left, !when, target);
+            return;
+        }
+        int kind = Expr.NE;
+        if (e.isComparison()) {
+            kind = e.kind;
+            expression(e.left);
+            expression(e.right);
+        } else {
+            expression(e);
+            code.pushLong(0);
+        }
+        code.op(LCMP, -3);
+        code.jump(jump(when ? kind : Expr.inverse(kind)), target, -1);
+    }
+
+    private static int jump(int comparison) {
+        switch (comparison) {
+            case Expr.LT:
+                return IFLT;
+            case Expr.GT:
+                return IFGT;
+            case Expr.LE:
+                return IFLE;
+            case Expr.GE:
+                return IFGE;
+            case Expr.EQ:
+                return IFEQ;
+            case Expr.NE:
+                return IFNE;
+            default:
+                throw new IllegalArgumentException("comparison " + comparison);
+        }
+    }
+
+    /**
+     * Leaves the value of {@code e} on the operand stack.
+     */
+    private void expression(Expr e) {
+        switch (e.kind) {
+            case Expr.NUMBER:
+                code.pushLong(e.big != null ? e.big.longValue() : e.number);
+                break;
+            case Expr.CHAR:
+                code.pushLong(character(e));
+                break;
+            case Expr.STRING:
+                code.op(GETSTATIC, file.fieldRef(CLASS_NAME, string(e), "J"), 2);
+                break;
+            case Expr.LOCAL:
+                code.local(LLOAD, 2 * e.symbol.index, 2);
+                break;
+            case Expr.GLOBAL:
+                code.op(GETSTATIC, field(e.symbol), 2);
+                break;
+            case Expr.ASSIGN:
+                expression(e.rhs);
+                code.op(DUP2, 2);
+                store(e.symbol);
+                break;
+            case Expr.CALL:
+                call(e);
+                break;
+            case Expr.NOT:
+            case Expr.LT:
+            case Expr.GT:
+            case Expr.LE:
+            case Expr.GE:
+            case Expr.EQ:
+            case Expr.NE: {
+                int no = code.newLabel();
+                int end = code.newLabel();
+                branch(e, false, no);
+                code.pushLong(1);
+                code.jump(GOTO, end, 0);
+                code.depth(code.depth() - 2);
+                code.mark(no);
+                code.pushLong(0);
+                code.mark(end);
+                break;
+            }
+            case Expr.NEG:
+                expression(e.left);
+                code.op(LNEG, 0);
+                break;
+            case Expr.OR:
+            case Expr.AND:
+            case Expr.ADD:
+            case Expr.SUB:
+            case Expr.MUL:
+            case Expr.DIV:
+            case Expr.MOD:
+                expression(e.left);
+                expression(e.right);
+                code.op(arithmetic(e.kind), -2);
+                break;
+            case Expr.INDEX:
+                address(e);
+                code.op(INVOKESTATIC, file.methodRef(MEMORY, "load", "(J)J"), 0);
+                break;
+            case Expr.BYTE_INDEX:
+                address(e);
+                code.op(INVOKESTATIC, file.methodRef(MEMORY, "loadByte", "(J)J"), 0);
+                break;
+            case Expr.STORE:
+            case Expr.BYTE_STORE:
+                address(e);
+                expression(e.rhs);
+                code.op(INVOKESTATIC, file.methodRef(MEMORY, e.kind == Expr.STORE ? "store" : "storeByte", "(JJ)J"),
+                        -2);
+                break;
+            default:
+                throw new IllegalArgumentException("expression " + e.kind);
+        }
+    }
+
+    private static int arithmetic(int kind) {
+        switch (kind) {
+            case Expr.OR:
+                return LOR;
+            case Expr.AND:
+                return LAND;
+            case Expr.ADD:
+                return LADD;
+            case Expr.SUB:
+                return LSUB;
+            case Expr.MUL:
+                return LMUL;
+            case Expr.DIV:
+                return LDIV;
+            default:
+                return LREM;
+        }
+    }
+
+    /**
+     * Computes the address of a word or byte indexing.
+     */
+    private void address(Expr e) {
+        expression(e.left);
+        expression(e.right);
+        if (e.kind == Expr.INDEX || e.kind == Expr.STORE) {
+            code.pushInt(3);
+            code.op(LSHL, -1);
+        }
+        code.op(LADD, -2);
+    }
+
+    private void store(Symbol symbol) {
+        if (symbol.kind == Symbol.LOCAL) {
+            code.local(LSTORE, 2 * symbol.index, -2);
+        } else {
+            code.op(PUTSTATIC, field(symbol), -2);
+        }
+    }
+
+    /**
+     * @return the field of a global variable: of the class for the globals of the unit, of {@link Libc} for the
+     * ones of the C library
+     */
+    private int field(Symbol symbol) {
+        String name = unit.name(symbol);
+        if (symbol.kind == Symbol.GLOBAL) {
+            return file.fieldRef(CLASS_NAME, name, "J");
+        }
+        if (Libc.variable(name) == null) {
+            throw new IllegalArgumentException("неизвестная переменная " + name);
+        }
+        return file.fieldRef(LIBC, name, "J");
+    }
+
+    /**
+     * A function of the unit gets as many arguments as it has parameters, missing ones being 0, extra ones
+     * evaluated and dropped. A function of {@link Libc} declared {@code long...} gets an array of them.
+     */
+    private void call(Expr e) {
+        String name = unit.name(e.symbol);
+        Function callee = functions.get(name);
+        String owner = CLASS_NAME;
+        int params;
+        if (callee != null) {
+            params = callee.params;
+        } else {
+            Method m = Libc.function(name);
+            if (m == null) {
+                throw new IllegalArgumentException("неизвестная функция " + name);
+            }
+            owner = LIBC;
+            params = m.getParameterCount();
+            if (m.isVarArgs()) {
+                code.newLongArray(e.args.length);
+                for (int i = 0; i < e.args.length; i++) {
+                    code.op(DUP, 1);
+                    code.pushInt(i);
+                    expression(e.args[i]);
+                    code.op(LASTORE, -4);
+                }
+                code.op(INVOKESTATIC, file.methodRef(owner, name, "([J)J"), 1);
+                return;
+            }
+        }
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < Math.max(params, e.args.length); i++) {
+            if (i < e.args.length) {
+                expression(e.args[i]);
+            } else {
+                code.pushLong(0);
+            }
+            if (i < params) {
+                descriptor.append('J');
+            } else {
+                code.op(POP2, -2);
+            }
+        }
+        code.op(INVOKESTATIC, file.methodRef(owner, name, descriptor.append(")J").toString()), 2 - 2 * params);
+    }
+
+    /**
+     * @return the name of the field holding the address of a string literal, the same for equal literals
+     */
+    private String string(Expr e) {
+        String text = new String(tokens.source, tokens.start[e.token], tokens.length[e.token]);
+        String field = strings.get(text);
+        if (field == null) {
+            // not a minilang identifier
+            field = "$LC" + strings.size();
+            strings.put(text, field);
+        }
+        return field;
+    }
+
+    /**
+     * @return the value of a character literal the lexer left unknown, as the assembler reads it
+     */
+    private long character(Expr e) {
+        if (e.number >= 0) {
+            return e.number;
+        }
+        String text = new String(tokens.source, tokens.start[e.token] + 1, tokens.length[e.token] - 2);
+        return Lexer.stringValue('"' + text + '"')[0] & 0xFF;
+    }
+
+    /**
+     * Class loader of one compiled unit; {@link Memory} and {@link Libc} come from the compiler's own loader.
+     */
+    private static final class Loader extends ClassLoader {
+        Loader() {
+            super(JvmBackend.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] bytes) {
+            return defineClass(CLASS_NAME, bytes, 0, bytes.length);
+        }
+    }
+}
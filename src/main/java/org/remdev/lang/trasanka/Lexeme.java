@@ -6,37 +6,105 @@ import static org.remdev.lang.trasanka.Constants.EOF;
  * Created by satalin on 7/28/17.
  */
 public enum Lexeme {
-    LEX_EOF(EOF),
-    LEX_ASM(0),
-    LEX_IF(1),
-    LEX_ELSE(2),
-    LEX_ELIF(3),
-    LEX_WHILE(4),
-    LEX_BREAK(5),
-    LEX_CONTINUE(6),
-    LEX_RETURN(7),
-    LEX_VAR(8),
-    LEX_KEYWORD_COUNT(9),
-    LEX_BLOCK_END(10),
-    LEX_CHAR(11),
-    LEX_STRING(12),
-    LEX_NUMBER(13),
-    LEX_IDENT(14),
-    LEX_ASM_LINE(15),
-    LEX_LE(16),
-    LEX_GE(17),
-    LEX_EQ(18),
-    LEX_NE(19),
-    LEX_SIZE(20);
+    LEX_EOF(EOF, "end of file"),
+    LEX_ASM(0, "asm"),
+    LEX_IF(1, "if"),
+    LEX_ELSE(2, "else"),
+    LEX_ELIF(3, "elif"),
+    LEX_WHILE(4, "while"),
+    LEX_BREAK(5, "break"),
+    LEX_CONTINUE(6, "continue"),
+    LEX_RETURN(7, "return"),
+    LEX_VAR(8, "var"),
+    LEX_KEYWORD_COUNT(9, "null"), //TODO
+    LEX_BLOCK_END(10, "block end"),
+    LEX_CHAR(11, "character"),
+    LEX_STRING(12, "string"),
+    LEX_NUMBER(13, "number"),
+    LEX_IDENT(14, "identifier"),
+    LEX_ASM_LINE(15, "asm line"),
+    LEX_LE(16, "<="),
+    LEX_GE(17, ">="),
+    LEX_EQ(18, "=="),
+    LEX_NE(19, "!="),
+    LEX_SIZE(20, "");
+
+    private static final Lexeme[] BY_VALUE = new Lexeme[LEX_SIZE.value + 2];
+
+    static {
+        for (Lexeme lexeme : values()) {
+            BY_VALUE[lexeme.value + 1] = lexeme;
+        }
+    }
 
     public final int value;
+    public final String text;
 
-    Lexeme(int value) {
+    Lexeme(int value, String text) {
         this.value = value;
+        this.text = text;
     }
 
     public int getValue() {
         return value;
     }
 
+    /**
+     * @return the lexeme with the given value, or null for single-character lexemes
+     */
+    public static Lexeme of(int value) {
+        if (value < EOF || value > LEX_SIZE.value) {
+            return null;
+        }
+        return BY_VALUE[value + 1];
+    }
+
+    /**
+     * Human-readable name of a lexeme value for diagnostics.
+     */
+    public static String describe(int value) {
+        Lexeme lexeme = of(value);
+        return lexeme != null ? lexeme.text : "<" + (char) value + ">";
+    }
+
+    /**
+     * Keyword recognition by length and first character.
+     *
+     * @return the keyword lexeme value, or {@code LEX_IDENT} if the slice is not a keyword
+     */
+    public static int keyword(char[] s, int offset, int length) {
+        switch (length) {
+            case 2:
+                if (s[offset] == 'i' && s[offset + 1] == 'f') return LEX_IF.value;
+                break;
+            case 3:
+                if (s[offset] == 'a') return matches(s, offset, "asm") ? LEX_ASM.value : LEX_IDENT.value;
+                if (s[offset] == 'v') return matches(s, offset, "var") ? LEX_VAR.value : LEX_IDENT.value;
+                break;
+            case 4:
+                if (s[offset] == 'e' && s[offset + 1] == 'l') {
+                    if (s[offset + 2] == 's' && s[offset + 3] == 'e') return LEX_ELSE.value;
+                    if (s[offset + 2] == 'i' && s[offset + 3] == 'f') return LEX_ELIF.value;
+                }
+                break;
+            case 5:
+                if (s[offset] == 'w') return matches(s, offset, "while") ? LEX_WHILE.value : LEX_IDENT.value;
+                if (s[offset] == 'b') return matches(s, offset, "break") ? LEX_BREAK.value : LEX_IDENT.value;
+                break;
+            case 6:
+                if (s[offset] == 'r') return matches(s, offset, "return") ? LEX_RETURN.value : LEX_IDENT.value;
+                break;
+            case 8:
+                if (s[offset] == 'c') return matches(s, offset, "continue") ? LEX_CONTINUE.value : LEX_IDENT.value;
+                break;
+        }
+        return LEX_IDENT.value;
+    }
+
+    private static boolean matches(char[] s, int offset, String keyword) {
+        for (int i = 1; i < keyword.length(); i++) {
+            if (s[offset + i] != keyword.charAt(i)) return false;
+        }
+        return true;
+    }
 }
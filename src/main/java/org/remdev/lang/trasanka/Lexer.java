@@ -0,0 +1,315 @@
+package org.remdev.lang.trasanka;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+import static org.remdev.lang.trasanka.Constants.EOF;
+import static org.remdev.lang.trasanka.Lexeme.*;
+
+/**
+ * Scanner that turns the whole source buffer into a {@link TokenBuffer} up front,
+ * so the parser can walk the tokens by index.
+ */
+public class Lexer {
+    private final char[] source;
+    private final int sourceLength;
+    private final SymbolPool symbols;
+    private int lineNumber = 1;
+    private int character;
+    private int pos;
+    private int brackets = 0;
+    private int block = 0;
+    private int indent = 0;
+    private int newline = 1;
+    private boolean asmActive = false;
+    private boolean asmPending = false;
+
+    // attributes of the token being scanned
+    private int tokenStart;
+    private int tokenLine;
+    private long value;
+    private BigInteger big;
+
+    public Lexer(SourceBuffer source, SymbolPool symbols) {
+        this.source = source.chars();
+        this.sourceLength = source.length();
+        this.symbols = symbols;
+    }
+
+    public TokenBuffer tokenize() {
+        // a token per ~4 chars is a generous guess for minilang sources
+        TokenBuffer tokens = new TokenBuffer(source, sourceLength / 4);
+        readChar();
+        int kind;
+        do {
+            value = 0;
+            big = null;
+            kind = scan();
+            int token = tokens.add(kind, tokenStart, tokenLength(kind), tokenLine, value);
+            if (big != null) {
+                tokens.setBig(token, big);
+            }
+            // asm: statement - everything after the ':' up to the end of the block is raw assembly
+            if (asmPending) {
+                asmPending = false;
+                asmActive = true;
+                newline = 1;
+            }
+            if (kind == LEX_ASM.getValue()) {
+                asmPending = true;
+            }
+        } while (kind != LEX_EOF.getValue());
+        return tokens;
+    }
+
+    private int tokenLength(int kind) {
+        if (kind == ';' || kind == LEX_BLOCK_END.getValue() || kind == LEX_EOF.getValue()) {
+            return 0;
+        }
+        return tokenEnd() - tokenStart;
+    }
+
+    private void error(String message) {
+        throw new SourceException(lineNumber, message);
+    }
+
+    private int readChar() {
+        int c = character;
+        character = pos < sourceLength ? source[pos++] : EOF;
+        if (character == '\n') {
+            lineNumber++;
+        }
+        return c;
+    }
+
+    private int tokenEnd() {
+        return character == EOF ? sourceLength : pos - 1;
+    }
+
+    /**
+     * @return code of an escaped character as the assembler reads it, or -1 if unknown
+     */
+    static int escapeValue(int c) {
+        switch (c) {
+            case 'n':
+                return '\n';
+            case 't':
+                return '\t';
+            case 'r':
+                return '\r';
+            case '0':
+                return 0;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case '\\':
+            case '\'':
+            case '"':
+                return c;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the bytes the assembler stores for a string literal, the quoted text with its escapes decoded, and
+     * the terminating zero
+     */
+    static byte[] stringValue(String quoted) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        byte[] text = quoted.substring(1, quoted.length() - 1).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < text.length; i++) {
+            int c = text[i];
+            if (c != '\\' || i + 1 == text.length) {
+                b.write(c);
+                continue;
+            }
+            c = text[++i];
+            if (c >= '0' && c <= '7') {
+                int value = 0;
+                for (int k = 0; k < 3 && i < text.length && text[i] >= '0' && text[i] <= '7'; k++) {
+                    value = value * 8 + text[i++] - '0';
+                }
+                i--;
+                b.write(value);
+            } else if (c == 'x') {
+                int value = 0;
+                while (i + 1 < text.length && Character.digit(text[i + 1], 16) >= 0) {
+                    value = value * 16 + Character.digit(text[++i], 16);
+                }
+                b.write(value);
+            } else {
+                int value = escapeValue(c);
+                // an unknown escape stands for the character itself
+                b.write(value >= 0 ? value : c);
+            }
+        }
+        b.write(0);
+        return b.toByteArray();
+    }
+
+    private int scan() {
+        boolean flag = true;
+        while (flag) {
+            flag = false;
+            while (CharClass.isSpace(character)) {
+                if (newline > 0) {
+                    if (character == ' ') indent++;
+                    if (character == '\t') indent = (indent & ~3) + 4;
+                }
+                if (character == '\n') {
+                    indent = 0;
+                    int n = newline;
+                    newline = 1;
+                    if (n == 0 && brackets == 0) {
+                        tokenStart = pos - 1;
+                        tokenLine = lineNumber - 1;
+                        return ';';
+                    }
+                }
+                readChar();
+            }
+
+            // игнорируем комментарий
+            if (character == '#') {
+                while (character != '\n' && character != EOF) {
+                    readChar();
+                }
+                flag = true;
+            }
+        }
+        tokenStart = tokenEnd();
+        tokenLine = lineNumber;
+        // обзац
+        if (!(brackets > 0)) {
+            if (indent > block) error("invalid indentation");
+            if (indent < block) {
+                asmActive = false;
+                block -= 4;
+                return LEX_BLOCK_END.getValue();
+            }
+        }
+
+        // ассемблерная линия
+        if (asmActive) {
+            while (character != '\n' && character != EOF) {
+                readChar();
+            }
+            return LEX_ASM_LINE.getValue();
+        }
+
+        newline = 0;
+        // односимвольный токен
+        if (CharClass.isOperator(character)) {
+            int c = readChar();
+            if (c == ':') {    // новый блок
+                block += 4;
+                indent += 4;
+            } else if ((c == '<' || c == '>' || c == '!' || c == '=') && character == '=') {
+                readChar();
+                switch (c) {
+                    case '<':
+                        return LEX_LE.getValue();
+                    case '>':
+                        return LEX_GE.getValue();
+                    case '=':
+                        return LEX_EQ.getValue();
+                    case '!':
+                        return LEX_NE.getValue();
+                }
+            } else if (c == '(' || c == '[') {
+                brackets++;
+            } else if (c == ')' || c == ']') {
+                brackets--;
+            }
+            // '-' перед числом - отрицательный литерал
+            if (c == '-' && CharClass.isDigit(character)) {
+                value = 1;
+            }
+            return c;
+        }
+        // символ
+        if (character == '\'') {
+            readChar();
+            boolean escape = character == '\\';
+            if (escape) {
+                readChar();
+            }
+            int c = readChar();
+            if (readChar() != '\'') {
+                error("плохой символ");
+            }
+            value = escape ? escapeValue(c) : c < 0x80 ? c : -1;
+            return LEX_CHAR.getValue();
+        }
+
+        // строка
+        if (character == '"') {
+            int i = 0;
+            do {
+                if (character == '\\') {
+                    i++;
+                    readChar();
+                }
+                i++;
+                readChar();
+                if (i > 1020 || character == EOF) {
+                    error("строка слишком длинная");
+                }
+            } while (character != '"');
+            readChar();
+            return LEX_STRING.getValue();
+        }
+
+        // число
+        if (CharClass.isDigit(character)) {
+            int i = 0;
+            boolean overflow = false;
+            long n = 0;
+            do {
+                int digit = Character.digit(readChar(), 10);
+                if (n > (Long.MAX_VALUE - digit) / 10) {
+                    overflow = true;
+                }
+                n = n * 10 + digit;
+                i++;
+                if (i > 20) {
+                    error("число слишком большое");
+                }
+            } while (CharClass.isDigit(character));
+            if (overflow) {
+                big = new BigInteger(new String(source, tokenStart, tokenEnd() - tokenStart));
+            }
+            value = n;
+            return LEX_NUMBER.getValue();
+        }
+
+        // лючевые слова и идентификаторы
+        if (CharClass.isIdentStart(character)) {
+            int i = 0;
+            do {
+                i++;
+                readChar();
+                if (i > 62) error("идентификатор слишком длинный");
+            } while (CharClass.isIdentPart(character));
+            // проверка на ключевые слова
+            int length = tokenEnd() - tokenStart;
+            int keyword = Lexeme.keyword(source, tokenStart, length);
+            if (keyword == LEX_IDENT.getValue()) {
+                value = symbols.intern(source, tokenStart, length);
+            }
+            return keyword;
+        }
+
+        if (character != EOF) {
+            error("неизвестный символ : \"" + (char) character + "\"");
+        }
+        if (block > 0) {
+            block -= 4;
+            return LEX_BLOCK_END.getValue();
+        }
+        return LEX_EOF.getValue();
+    }
+}
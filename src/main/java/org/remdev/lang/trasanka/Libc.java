@@ -0,0 +1,550 @@
+package org.remdev.lang.trasanka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The part of the C library the minilang programs call, for running them on the JVM.
+ * <p>
+ * A call to a function the unit does not define is compiled by {@link JvmBackend} into a call of the public static
+ * method of the same name here: a {@code long...} method takes the arguments as they are, the others get the
+ * missing arguments as 0. Pointers are addresses in {@link Memory}, a {@code FILE *} is an index into the table of
+ * open streams. A function returning {@code int} in C gives the value zero-extended to 64 bits, like the upper half
+ * of rax is after the native call; {@code EOF} reads as 4294967295.
+ */
+public final class Libc {
+    // the low half of a register
+    private static final long INT = 0xFFFFFFFFL;
+    private static final long EOF = -1 & INT;
+
+    // the standard streams as the programs see them
+    public static long stdin = 1;
+    public static long stdout = 2;
+    public static long stderr = 3;
+
+    private static final List<Object> streams = new ArrayList<>();
+
+    static {
+        streams.add(null);
+        streams.add(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        streams.add(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+        streams.add(new FileOutputStream(FileDescriptor.err));
+    }
+
+    /**
+     * Thrown by {@link #exit(long)} to unwind the program.
+     */
+    public static final class Exit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final int status;
+
+        Exit(int status) {
+            super("exit " + status, null, false, false);
+            this.status = status;
+        }
+    }
+
+    private Libc() {
+    }
+
+    /**
+     * @return the C function {@code name} or null
+     */
+    static Method function(String name) {
+        for (Method m : Libc.class.getMethods()) {
+            if (m.getName().equals(name) && Modifier.isStatic(m.getModifiers()) && m.getReturnType() == long.class) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the C global variable {@code name}, e.g. {@code stdout}, or null
+     */
+    static Field variable(String name) {
+        try {
+            Field f = Libc.class.getField(name);
+            return Modifier.isStatic(f.getModifiers()) && f.getType() == long.class ? f : null;
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    // ---- process
+
+    public static long exit(long status) {
+        flushAll();
+        throw new Exit((int) status);
+    }
+
+    /**
+     * Writes out what the output streams still buffer.
+     */
+    static void flushAll() {
+        for (Object stream : streams) {
+            if (stream instanceof OutputStream) {
+                try {
+                    ((OutputStream) stream).flush();
+                } catch (IOException e) {
+                    // nothing to report it to
+                }
+            }
+        }
+    }
+
+    // ---- stdio
+
+    public static long printf(long... args) {
+        return write(stdout, format(args, 0));
+    }
+
+    public static long fprintf(long... args) {
+        return write(args.length > 0 ? args[0] : 0, format(args, 1));
+    }
+
+    public static long sprintf(long... args) {
+        byte[] text = format(args, 1);
+        for (int i = 0; i < text.length; i++) {
+            Memory.storeByte(args[0] + i, text[i]);
+        }
+        Memory.storeByte(args[0] + text.length, 0);
+        return text.length;
+    }
+
+    public static long puts(long s) {
+        byte[] text = Memory.bytes(s);
+        return write(stdout, text) == EOF || fputc('\n', stdout) == EOF ? EOF : text.length + 1;
+    }
+
+    public static long fputs(long s, long stream) {
+        return write(stream, Memory.bytes(s));
+    }
+
+    public static long putchar(long c) {
+        return fputc(c, stdout);
+    }
+
+    public static long fputc(long c, long stream) {
+        return write(stream, new byte[]{(byte) c}) == EOF ? EOF : c & 0xFF;
+    }
+
+    public static long getchar() {
+        return fgetc(stdin);
+    }
+
+    public static long fgetc(long stream) {
+        Object in = stream(stream);
+        if (!(in instanceof InputStream)) {
+            return EOF;
+        }
+        try {
+            return ((InputStream) in).read() & INT;
+        } catch (IOException e) {
+            return EOF;
+        }
+    }
+
+    public static long fopen(long path, long mode) {
+        String name = Memory.string(path);
+        String how = Memory.string(mode);
+        Closeable stream;
+        try {
+            if (how.startsWith("r")) {
+                stream = new BufferedInputStream(new FileInputStream(name));
+            } else {
+                stream = new BufferedOutputStream(new FileOutputStream(name, how.startsWith("a")));
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+        streams.add(stream);
+        return streams.size() - 1;
+    }
+
+    public static long fclose(long stream) {
+        Object s = stream(stream);
+        if (s == null) {
+            return EOF;
+        }
+        try {
+            if (stream <= stderr) {
+                // the standard streams stay usable for the JVM
+                fflush(stream);
+            } else {
+                ((Closeable) s).close();
+                streams.set((int) stream, null);
+            }
+            return 0;
+        } catch (IOException e) {
+            return EOF;
+        }
+    }
+
+    public static long fflush(long stream) {
+        if (stream == 0) {
+            flushAll();
+            return 0;
+        }
+        Object out = stream(stream);
+        try {
+            if (out instanceof OutputStream) {
+                ((OutputStream) out).flush();
+            }
+            return 0;
+        } catch (IOException e) {
+            return EOF;
+        }
+    }
+
+    private static Object stream(long stream) {
+        return stream > 0 && stream < streams.size() ? streams.get((int) stream) : null;
+    }
+
+    private static long write(long stream, byte[] bytes) {
+        Object out = stream(stream);
+        if (!(out instanceof OutputStream)) {
+            return EOF;
+        }
+        try {
+            ((OutputStream) out).write(bytes);
+            return bytes.length;
+        } catch (IOException e) {
+            return EOF;
+        }
+    }
+
+    /**
+     * Formats {@code args[first]} with the arguments following it the way printf does, for the conversions
+     * {@code d i u x X o c s p %} with flags, width, precision and length modifiers. Without {@code l} an integer
+     * conversion takes the low 32 bits of its argument, like the C function reading an int.
+     */
+    static byte[] format(long[] args, int first) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (args.length <= first) {
+            return out.toByteArray();
+        }
+        byte[] f = Memory.bytes(args[first]);
+        int next = first + 1;
+        for (int i = 0; i < f.length; i++) {
+            if (f[i] != '%' || i + 1 == f.length) {
+                out.write(f[i]);
+                continue;
+            }
+            i++;
+            boolean left = false;
+            boolean zero = false;
+            boolean alternate = false;
+            String sign = "";
+            for (; i < f.length; i++) {
+                if (f[i] == '-') {
+                    left = true;
+                } else if (f[i] == '0') {
+                    zero = true;
+                } else if (f[i] == '#') {
+                    alternate = true;
+                } else if (f[i] == '+') {
+                    sign = "+";
+                } else if (f[i] == ' ') {
+                    sign = sign.isEmpty() ? " " : sign;
+                } else {
+                    break;
+                }
+            }
+            int width = 0;
+            if (i < f.length && f[i] == '*') {
+                width = (int) argument(args, next++);
+                if (width < 0) {
+                    left = true;
+                    width = -width;
+                }
+                i++;
+            }
+            for (; i < f.length && f[i] >= '0' && f[i] <= '9'; i++) {
+                width = width * 10 + f[i] - '0';
+            }
+            int precision = -1;
+            if (i < f.length && f[i] == '.') {
+                i++;
+                precision = 0;
+                if (i < f.length && f[i] == '*') {
+                    precision = (int) argument(args, next++);
+                    i++;
+                }
+                for (; i < f.length && f[i] >= '0' && f[i] <= '9'; i++) {
+                    precision = precision * 10 + f[i] - '0';
+                }
+            }
+            boolean wide = false;
+            for (; i < f.length && "hlqjzt".indexOf(f[i]) >= 0; i++) {
+                wide |= f[i] != 'h';
+            }
+            if (i == f.length) {
+                break;
+            }
+            byte conversion = f[i];
+            byte[] body;
+            String prefix = "";
+            boolean numeric = true;
+            switch (conversion) {
+                case 'd':
+                case 'i': {
+                    long value = argument(args, next++);
+                    value = wide ? value : (int) value;
+                    if (value < 0) {
+                        prefix = "-";
+                    } else {
+                        prefix = sign;
+                    }
+                    String digits = value < 0 ? Long.toString(value).substring(1) : Long.toString(value);
+                    body = digits(digits, precision);
+                    break;
+                }
+                case 'u':
+                case 'x':
+                case 'X':
+                case 'o': {
+                    long value = argument(args, next++);
+                    value = wide ? value : value & 0xFFFFFFFFL;
+                    int radix = conversion == 'u' ? 10 : conversion == 'o' ? 8 : 16;
+                    String digits = Long.toUnsignedString(value, radix);
+                    if (conversion == 'X') {
+                        digits = digits.toUpperCase();
+                    }
+                    if (alternate && conversion == 'o' && !digits.startsWith("0")) {
+                        digits = "0" + digits;
+                    } else if (alternate && radix == 16 && value != 0) {
+                        prefix = conversion == 'X' ? "0X" : "0x";
+                    }
+                    body = digits(digits, precision);
+                    break;
+                }
+                case 'p': {
+                    long value = argument(args, next++);
+                    body = (value == 0 ? "(nil)" : "0x" + Long.toHexString(value)).getBytes(StandardCharsets.US_ASCII);
+                    numeric = false;
+                    break;
+                }
+                case 'c':
+                    body = new byte[]{(byte) argument(args, next++)};
+                    numeric = false;
+                    break;
+                case 's': {
+                    long s = argument(args, next++);
+                    body = s == 0 ? "(null)".getBytes(StandardCharsets.US_ASCII) : Memory.bytes(s);
+                    if (precision >= 0 && precision < body.length) {
+                        byte[] cut = new byte[precision];
+                        System.arraycopy(body, 0, cut, 0, precision);
+                        body = cut;
+                    }
+                    numeric = false;
+                    break;
+                }
+                case '%':
+                    out.write('%');
+                    continue;
+                default:
+                    // not a conversion: printed as it is
+                    out.write('%');
+                    out.write(conversion);
+                    continue;
+            }
+            int padding = Math.max(width - prefix.length() - body.length, 0);
+            if (!left && !(zero && numeric && precision < 0)) {
+                pad(out, ' ', padding);
+            }
+            out.write(prefix.getBytes(StandardCharsets.US_ASCII), 0, prefix.length());
+            if (!left && zero && numeric && precision < 0) {
+                pad(out, '0', padding);
+            }
+            out.write(body, 0, body.length);
+            if (left) {
+                pad(out, ' ', padding);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static long argument(long[] args, int i) {
+        // a missing argument reads whatever the register holds
+        return i < args.length ? args[i] : 0;
+    }
+
+    private static byte[] digits(String digits, int precision) {
+        if (precision == 0 && digits.equals("0")) {
+            digits = "";
+        }
+        StringBuilder b = new StringBuilder();
+        for (int n = digits.length(); n < precision; n++) {
+            b.append('0');
+        }
+        return b.append(digits).toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void pad(ByteArrayOutputStream out, char c, int count) {
+        for (int i = 0; i < count; i++) {
+            out.write(c);
+        }
+    }
+
+    // ---- stdlib
+
+    public static long malloc(long size) {
+        return Memory.allocate(size);
+    }
+
+    public static long calloc(long count, long size) {
+        // fresh blocks are zero
+        return Memory.allocate(count * size);
+    }
+
+    public static long realloc(long address, long size) {
+        long block = Memory.allocate(size);
+        if (address != 0 && block != 0) {
+            Memory.copy(block, address, Math.min(Memory.blockSize(address), size));
+        }
+        return block;
+    }
+
+    public static long free(long address) {
+        return 0;
+    }
+
+    public static long atoi(long s) {
+        return atoll(s) & INT;
+    }
+
+    public static long atol(long s) {
+        return atoll(s);
+    }
+
+    public static long atoll(long s) {
+        long value = 0;
+        boolean negative = false;
+        long p = s;
+        while (isspace(Memory.loadByte(p)) != 0) {
+            p++;
+        }
+        if (Memory.loadByte(p) == '-' || Memory.loadByte(p) == '+') {
+            negative = Memory.loadByte(p++) == '-';
+        }
+        for (long c = Memory.loadByte(p); c >= '0' && c <= '9'; c = Memory.loadByte(++p)) {
+            value = value * 10 + c - '0';
+        }
+        return negative ? -value : value;
+    }
+
+    public static long abs(long value) {
+        int i = (int) value;
+        return (i < 0 ? -i : i) & INT;
+    }
+
+    // ---- string
+
+    public static long strlen(long s) {
+        return Memory.length(s);
+    }
+
+    public static long strcmp(long a, long b) {
+        for (; ; a++, b++) {
+            long c = Memory.loadByte(a);
+            long d = Memory.loadByte(b);
+            if (c != d || c == 0) {
+                return c - d & INT;
+            }
+        }
+    }
+
+    public static long strncmp(long a, long b, long n) {
+        for (; n > 0; a++, b++, n--) {
+            long c = Memory.loadByte(a);
+            long d = Memory.loadByte(b);
+            if (c != d || c == 0) {
+                return c - d & INT;
+            }
+        }
+        return 0;
+    }
+
+    public static long strcpy(long to, long from) {
+        Memory.copy(to, from, Memory.length(from) + 1);
+        return to;
+    }
+
+    public static long strcat(long to, long from) {
+        strcpy(to + Memory.length(to), from);
+        return to;
+    }
+
+    public static long strchr(long s, long c) {
+        c &= 0xFF;
+        for (; ; s++) {
+            long b = Memory.loadByte(s);
+            if (b == c) {
+                return s;
+            }
+            if (b == 0) {
+                return 0;
+            }
+        }
+    }
+
+    public static long memcpy(long to, long from, long n) {
+        Memory.copy(to, from, n);
+        return to;
+    }
+
+    public static long memset(long s, long c, long n) {
+        Memory.fill(s, (int) c, n);
+        return s;
+    }
+
+    // ---- ctype
+
+    public static long isdigit(long c) {
+        return c >= '0' && c <= '9' ? 1 : 0;
+    }
+
+    public static long isalpha(long c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' ? 1 : 0;
+    }
+
+    public static long isalnum(long c) {
+        return isalpha(c) | isdigit(c);
+    }
+
+    public static long isspace(long c) {
+        return c == ' ' || c >= '\t' && c <= '\r' ? 1 : 0;
+    }
+
+    public static long isupper(long c) {
+        return c >= 'A' && c <= 'Z' ? 1 : 0;
+    }
+
+    public static long islower(long c) {
+        return c >= 'a' && c <= 'z' ? 1 : 0;
+    }
+
+    public static long toupper(long c) {
+        return islower(c) != 0 ? c - 32 : c;
+    }
+
+    public static long tolower(long c) {
+        return isupper(c) != 0 ? c + 32 : c;
+    }
+}
@@ -0,0 +1,985 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loop optimizations on the IR: strength reduction of induction variables and unrolling of counted loops,
+ * rotation into bottom-test loops and moving loop-invariant expressions out of loops.
+ * <p>
+ * A counted loop is {@code while i < n} (also {@code <=}, and {@code !=} stepping by one) whose body ends with
+ * {@code i = i + c}, the only assignment of {@code i} in the loop, and whose bound does not change in the loop.
+ * <p>
+ * A rotated loop tests its condition once on entry ({@link Stmt#guard}) and then at the bottom of every iteration.
+ * Invariant expressions are computed into new locals: those of the condition by statements in front of the loop,
+ * which the entry test then uses too, the others by {@link Stmt#setup}, which runs after the entry test.
+ * Loads and divisions may fault, so they are only moved when the loop evaluates them every time it is entered:
+ * in the condition and in the plain statements the body starts with. Innermost loops are done first, so an
+ * expression invariant in several loops ends up in front of the outermost of them. An unrolled loop and the
+ * loop running the iterations left share their invariants, computed once under the entry test of the latter.
+ */
+public final class LoopOptimizer {
+    // the largest increment of a counter that is strength reduced or unrolled
+    private static final long STEP_LIMIT = 1 << 20;
+    // expression nodes an unrolled body may have at most
+    private static final int UNROLL_LIMIT = 128;
+
+    // whether a variable is read before it is next assigned
+    private static final int LIVE = 0;
+    private static final int DEAD = 1;
+    private static final int UNKNOWN = 2;
+
+    private final Function function;
+    private final Options options;
+    // what was done to the loops of this function
+    private int hoisted;
+    private int reduced;
+    private int unrolled;
+
+    // statement lists enclosing the loop being optimized, innermost last
+    private final List<Scope> scopes = new ArrayList<>();
+
+    // the loop being optimized: what it writes, the expressions moved out so far and the locals holding them
+    private Effects effects;
+    private List<Expr> invariants;
+    private List<Symbol> temporaries;
+    // assignments of the invariants of the condition, which go in front of the loop, and of the other ones
+    private List<Stmt> prelude;
+    private List<Stmt> setup;
+    // whether the condition is being rewritten
+    private boolean inCondition;
+
+    // the counted loop being optimized: counter < / <= / != bound, and the statement adding step to the counter
+    private Symbol counter;
+    private int compare;
+    private Expr bound;
+    private long step;
+    private Stmt increment;
+
+    private LoopOptimizer(Function function, Options options) {
+        this.function = function;
+        this.options = options;
+    }
+
+    public static void optimize(Unit unit, Options options) {
+        for (Function function : unit.functions) {
+            LoopOptimizer optimizer = new LoopOptimizer(function, options);
+            optimizer.statementList(function.body, null);
+            if (options.stats) {
+                String name = unit.name(function.symbol);
+                options.statsOut.println("invariants " + name + ": " + optimizer.hoisted);
+                options.statsOut.println("induction " + name + ": " + optimizer.reduced);
+                options.statsOut.println("unrolled " + name + ": " + optimizer.unrolled);
+            }
+        }
+    }
+
+    /**
+     * A statement list being walked and the if or while it belongs to, null for the body of the function.
+     */
+    private static final class Scope {
+        final List<Stmt> statements;
+        final Stmt owner;
+        int position;
+
+        Scope(List<Stmt> statements, Stmt owner) {
+            this.statements = statements;
+            this.owner = owner;
+        }
+    }
+
+    private void statementList(List<Stmt> statements, Stmt owner) {
+        Scope scope = new Scope(statements, owner);
+        scopes.add(scope);
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt s = statements.get(i);
+            scope.position = i;
+            switch (s.kind) {
+                case Stmt.IF:
+                    for (List<Stmt> branch : s.branches) {
+                        statementList(branch, s);
+                    }
+                    if (s.otherwise != null) {
+                        statementList(s.otherwise, s);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    statementList(s.body, s);
+                    i = loop(statements, i);
+                    break;
+                default:
+                    break;
+            }
+        }
+        scopes.remove(scopes.size() - 1);
+    }
+
+    /**
+     * Optimizes the loop at {@code statements.get(at)}; statements may be inserted in front of it and after it.
+     *
+     * @return position of the last statement the loop has become
+     */
+    private int loop(List<Stmt> statements, int at) {
+        Stmt s = statements.get(at);
+        Stmt rest = null;
+        if ((options.inductionVariables || options.unroll > 1) && counted(s)) {
+            if (options.inductionVariables) {
+                at += reduce(s, statements, at);
+            }
+            int inserted = options.unroll > 1 ? unroll(s, statements, at) : -1;
+            if (inserted >= 0) {
+                at += inserted;
+                rest = statements.get(at + 1);
+            }
+        }
+        return rotate(statements, at, rest);
+    }
+
+    /**
+     * Moves the invariants out of the loop at {@code statements.get(at)} and out of the remainder loop {@code rest}
+     * following it, if it was unrolled, and rotates them.
+     *
+     * @return position of the last statement the loops have become
+     */
+    private int rotate(List<Stmt> statements, int at, Stmt rest) {
+        Stmt s = statements.get(at);
+        boolean forever = s.expr.isConstant() && s.expr.number != 0;
+        boolean rotate = options.rotateLoops && !forever;
+        // the remainder loop runs whenever its condition holds on entry, be it after the unrolled loop or alone
+        Expr entry = rest != null ? rest.expr : null;
+        invariants = new ArrayList<>();
+        temporaries = new ArrayList<>();
+        prelude = new ArrayList<>();
+        setup = new ArrayList<>();
+        if (options.moveInvariants) {
+            hoist(s, rotate || forever);
+            if (rest != null) {
+                hoist(rest, rotate);
+            }
+        }
+        if (rotate) {
+            s.guard = s.expr;
+            if (rest != null) {
+                rest.guard = rest.expr;
+            }
+        }
+        int last = rest != null ? at + 1 : at;
+        if (!setup.isEmpty()) {
+            if (rest == null) {
+                s.setup = setup;
+            } else if (rotate) {
+                Stmt unrolled = new Stmt(Stmt.IF);
+                unrolled.conditions = new ArrayList<>();
+                // the test comes before the setup, it may only use what the prelude computed
+                unrolled.conditions.add(new Rewriter() {
+                    @Override
+                    Expr replacement(Expr e, boolean mayFault) {
+                        int i = indexOf(e);
+                        if (i < 0) {
+                            return null;
+                        }
+                        for (Stmt p : prelude) {
+                            if (p.expr.symbol == temporaries.get(i)) {
+                                return Expr.variable(p.expr.symbol);
+                            }
+                        }
+                        return null;
+                    }
+                }.rewrite(entry, false));
+                List<Stmt> both = new ArrayList<>(setup);
+                both.add(s);
+                both.add(rest);
+                unrolled.branches = new ArrayList<>();
+                unrolled.branches.add(both);
+                statements.subList(at, at + 2).clear();
+                statements.add(at, unrolled);
+                last = at;
+            } else {
+                // nothing that may fault was moved, the setup can run even if neither loop is entered
+                prelude.addAll(setup);
+            }
+        }
+        statements.addAll(at, prelude);
+        return last + prelude.size();
+    }
+
+    /**
+     * Recognizes a counted loop and remembers its counter, bound and step.
+     */
+    private boolean counted(Stmt s) {
+        effects = new Effects();
+        effects.collect(s.expr);
+        if (!collect(s.body, effects) || !s.expr.isComparison() || s.body.isEmpty()) {
+            return false;
+        }
+        int kind = s.expr.kind;
+        Expr v = s.expr.left;
+        Expr b = s.expr.right;
+        if (!isWritten(v)) {
+            kind = Expr.swapped(kind);
+            v = s.expr.right;
+            b = s.expr.left;
+        }
+        if (!isWritten(v) || kind != Expr.LT && kind != Expr.LE && kind != Expr.NE || !invariant(b)) {
+            return false;
+        }
+        Stmt last = s.body.get(s.body.size() - 1);
+        Expr e = last.kind == Stmt.EXPR ? last.expr : null;
+        if (e == null || e.kind != Expr.ASSIGN || e.symbol != v.symbol || e.rhs.kind != Expr.ADD
+                || !isVariable(e.rhs.left, v.symbol) || !e.rhs.right.isConstant()) {
+            return false;
+        }
+        long c = e.rhs.right.number;
+        if (c <= 0 || c > STEP_LIMIT || kind == Expr.NE && c != 1) {
+            return false;
+        }
+        List<Expr> all = new ArrayList<>();
+        all.add(s.expr);
+        expressions(s.body, all);
+        int assignments = 0;
+        for (Expr x : all) {
+            assignments += assignments(x, v.symbol);
+        }
+        if (assignments != 1) {
+            return false;
+        }
+        counter = v.symbol;
+        compare = kind;
+        bound = b;
+        step = c;
+        increment = last;
+        return true;
+    }
+
+    private boolean isWritten(Expr e) {
+        return e.kind == Expr.LOCAL && effects.writesLocals.get(e.symbol.index);
+    }
+
+    /**
+     * Strength reduction of the counter: {@code i * c} becomes a variable of its own stepping by {@code c * step},
+     * and if the counter is otherwise only an index into one array and not needed after the loop, it is replaced
+     * by a pointer into that array compared against a pointer to the end.
+     *
+     * @return number of statements inserted in front of the loop
+     */
+    private int reduce(Stmt s, List<Stmt> statements, int at) {
+        List<Stmt> init = new ArrayList<>();
+        List<Stmt> updates = new ArrayList<>();
+
+        List<Expr> all = new ArrayList<>();
+        all.add(s.expr);
+        expressions(s.body, all);
+        final List<Long> factors = new ArrayList<>();
+        final List<Symbol> multiples = new ArrayList<>();
+        for (Expr e : all) {
+            multiples(e, factors);
+        }
+        for (long factor : factors) {
+            Symbol t = function.newLocal();
+            multiples.add(t);
+            init.add(assign(t, Expr.binary(Expr.MUL, Expr.variable(counter), Expr.number(factor))));
+            updates.add(assign(t, Expr.binary(Expr.ADD, Expr.variable(t), Expr.number(factor * step))));
+            reduced++;
+        }
+        if (!factors.isEmpty()) {
+            new Rewriter() {
+                @Override
+                Expr replacement(Expr e, boolean mayFault) {
+                    if (e.kind == Expr.MUL && isVariable(e.left, counter) && e.right.isConstant()) {
+                        int i = factors.indexOf(e.right.number);
+                        if (i >= 0) {
+                            return Expr.variable(multiples.get(i));
+                        }
+                    }
+                    return null;
+                }
+            }.loop(s);
+        }
+
+        Expr array = array(s);
+        if (array != null && !live(counter)) {
+            final Symbol base = array.left.symbol;
+            final int scale = array.kind == Expr.INDEX || array.kind == Expr.STORE ? 8 : 1;
+            final Symbol pointer = function.newLocal();
+            Symbol end = function.newLocal();
+            init.add(assign(pointer, Expr.binary(Expr.ADD, Expr.variable(base), scaled(Expr.variable(counter), scale))));
+            init.add(assign(end, Expr.binary(Expr.ADD, Expr.variable(base), scaled(bound, scale))));
+            new Rewriter() {
+                @Override
+                Expr replacement(Expr e, boolean mayFault) {
+                    if (!isArrayAccess(e, base)) {
+                        return null;
+                    }
+                    Expr access = new Expr(e.kind);
+                    access.left = Expr.variable(pointer);
+                    access.right = Expr.number(offset(e.right));
+                    access.rhs = e.rhs == null ? null : rewrite(e.rhs, mayFault);
+                    return access;
+                }
+            }.loop(s);
+            s.expr = Expr.binary(compare, Expr.variable(pointer), Expr.variable(end));
+            increment.expr = assign(pointer, Expr.binary(Expr.ADD, Expr.variable(pointer), Expr.number(step * scale))).expr;
+            counter = pointer;
+            bound = Expr.variable(end);
+            step *= scale;
+            reduced++;
+        }
+
+        s.body.addAll(s.body.indexOf(increment) + 1, updates);
+        statements.addAll(at, init);
+        return init.size();
+    }
+
+    /**
+     * Collects the constant factors of {@code counter * c} in {@code e}; a power of two is left alone since the
+     * shift costs as much as the add replacing it.
+     */
+    private void multiples(Expr e, List<Long> factors) {
+        if (e.kind == Expr.MUL && isVariable(e.left, counter) && e.right.isConstant()) {
+            long c = e.right.number;
+            if ((c & (c - 1)) != 0 && !factors.contains(c)) {
+                factors.add(c);
+            }
+            return;
+        }
+        if (e.left != null) multiples(e.left, factors);
+        if (e.right != null) multiples(e.right, factors);
+        if (e.rhs != null) multiples(e.rhs, factors);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                multiples(arg, factors);
+            }
+        }
+    }
+
+    /**
+     * @return an access of the one array the counter of loop {@code s} indexes, null if the counter has other
+     * uses besides the condition and the increment, or indexes more than one array
+     */
+    private Expr array(Stmt s) {
+        if (!isVariable(s.expr.left, counter) && !isVariable(s.expr.right, counter) || mayFault(bound)) {
+            return null;
+        }
+        List<Expr> all = new ArrayList<>();
+        expressions(s.body, all);
+        all.remove(increment.expr);
+        List<Expr> accesses = new ArrayList<>();
+        int uses = 0;
+        for (Expr e : all) {
+            uses += accesses(e, accesses);
+        }
+        if (accesses.isEmpty() || uses != accesses.size()) {
+            return null;
+        }
+        Expr first = accesses.get(0);
+        if (first.left.kind != Expr.LOCAL || isWritten(first.left)) {
+            return null;
+        }
+        for (Expr e : accesses) {
+            if (!isArrayAccess(e, first.left.symbol) || bytes(e) != bytes(first)) {
+                return null;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Collects the indexings by {@code counter} or {@code counter} plus a constant.
+     *
+     * @return number of reads of the counter in {@code e}
+     */
+    private int accesses(Expr e, List<Expr> into) {
+        if (e.kind == Expr.LOCAL) {
+            return e.symbol == counter ? 1 : 0;
+        }
+        int uses = 0;
+        if (isIndexing(e) && isCounter(e.right)) {
+            into.add(e);
+            uses++;
+        } else if (e.right != null) {
+            uses += accesses(e.right, into);
+        }
+        if (e.left != null) uses += accesses(e.left, into);
+        if (e.rhs != null) uses += accesses(e.rhs, into);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                uses += accesses(arg, into);
+            }
+        }
+        return uses;
+    }
+
+    private boolean isArrayAccess(Expr e, Symbol base) {
+        return isIndexing(e) && isVariable(e.left, base) && isCounter(e.right);
+    }
+
+    private static boolean isIndexing(Expr e) {
+        return e.kind == Expr.INDEX || e.kind == Expr.BYTE_INDEX || e.kind == Expr.STORE || e.kind == Expr.BYTE_STORE;
+    }
+
+    private static boolean bytes(Expr e) {
+        return e.kind == Expr.BYTE_INDEX || e.kind == Expr.BYTE_STORE;
+    }
+
+    /**
+     * @return true for {@code counter}, {@code counter + c} and {@code counter - c}
+     */
+    private boolean isCounter(Expr e) {
+        return isVariable(e, counter)
+                || (e.kind == Expr.ADD || e.kind == Expr.SUB) && isVariable(e.left, counter) && e.right.isConstant()
+                && e.right.number == (int) e.right.number;
+    }
+
+    private static long offset(Expr index) {
+        if (index.kind == Expr.LOCAL) {
+            return 0;
+        }
+        return index.kind == Expr.ADD ? index.right.number : -index.right.number;
+    }
+
+    private static Expr scaled(Expr e, int scale) {
+        return scale == 1 ? e : Expr.binary(Expr.MUL, e, Expr.number(scale));
+    }
+
+    /**
+     * Unrolls a counted loop {@code options.unroll} times; a copy of the original loop runs the iterations left.
+     * Loops with break or continue, nested loops and asm are not unrolled.
+     *
+     * @return number of statements inserted in front of the loop, -1 if it was not unrolled; the remainder loop
+     *         follows it otherwise
+     */
+    private int unroll(Stmt s, List<Stmt> statements, int at) {
+        int factor = options.unroll;
+        if (compare == Expr.NE || !unrollable(s.body) || nodes(s.body) * factor > UNROLL_LIMIT) {
+            return -1;
+        }
+        // the counter may only take that many steps if the last of them still satisfies the condition,
+        // i <= b - ahead being tested as i < b - ahead + 1
+        long ahead = (factor - 1) * step - (compare == Expr.LE ? 1 : 0);
+        if (bound.isConstant() && bound.number - ahead > bound.number) {
+            return -1;
+        }
+        Stmt rest = new Stmt(Stmt.WHILE);
+        rest.expr = s.expr;
+        rest.body = copy(s.body);
+
+        List<Stmt> body = new ArrayList<>(s.body.size() * factor);
+        body.addAll(s.body);
+        for (int i = 1; i < factor; i++) {
+            body.addAll(copy(s.body));
+        }
+        s.body = body;
+        List<Stmt> init = new ArrayList<>();
+        Expr limit;
+        if (bound.isConstant()) {
+            limit = Expr.number(bound.number - ahead);
+        } else if (ahead == 0) {
+            limit = bound;
+        } else {
+            // where b - ahead wraps around the unrolled loop is skipped and the remainder loop runs alone
+            Expr b = bound;
+            if (b.kind != Expr.LOCAL) {
+                Symbol t = function.newLocal();
+                init.add(assign(t, b));
+                b = Expr.variable(t);
+                rest.expr = Expr.binary(compare, Expr.variable(counter), b);
+            }
+            Symbol l = function.newLocal();
+            init.add(assign(l, Expr.binary(Expr.SUB, b, Expr.number(ahead))));
+            Stmt wrapped = Stmt.conditional();
+            wrapped.conditions.add(Expr.binary(Expr.GT, Expr.variable(l), b));
+            List<Stmt> skip = new ArrayList<>();
+            skip.add(assign(l, Expr.number(Long.MIN_VALUE)));
+            wrapped.branches.add(skip);
+            init.add(wrapped);
+            limit = Expr.variable(l);
+        }
+        s.expr = Expr.binary(Expr.LT, Expr.variable(counter), limit);
+        statements.add(at + 1, rest);
+        statements.addAll(at, init);
+        unrolled++;
+        return init.size();
+    }
+
+    private static boolean unrollable(List<Stmt> statements) {
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.IF:
+                    for (List<Stmt> branch : s.branches) {
+                        if (!unrollable(branch)) {
+                            return false;
+                        }
+                    }
+                    if (s.otherwise != null && !unrollable(s.otherwise)) {
+                        return false;
+                    }
+                    break;
+                case Stmt.EXPR:
+                case Stmt.RETURN:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the statements of a loop body; the expressions are shared since they are never modified
+     * in place
+     */
+    private static List<Stmt> copy(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (Stmt s : statements) {
+            Stmt c = new Stmt(s.kind);
+            c.expr = s.expr;
+            if (s.kind == Stmt.IF) {
+                c.conditions = new ArrayList<>(s.conditions);
+                c.branches = new ArrayList<>(s.branches.size());
+                for (List<Stmt> branch : s.branches) {
+                    c.branches.add(copy(branch));
+                }
+                c.otherwise = s.otherwise == null ? null : copy(s.otherwise);
+            }
+            result.add(c);
+        }
+        return result;
+    }
+
+    private static int nodes(List<Stmt> statements) {
+        List<Expr> all = new ArrayList<>();
+        expressions(statements, all);
+        int n = 0;
+        for (Expr e : all) {
+            n += nodes(e);
+        }
+        return n;
+    }
+
+    private static int nodes(Expr e) {
+        int n = 1;
+        if (e.left != null) n += nodes(e.left);
+        if (e.right != null) n += nodes(e.right);
+        if (e.rhs != null) n += nodes(e.rhs);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                n += nodes(arg);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return true unless {@code v} is certainly assigned before it is read again once the current loop is done
+     */
+    private boolean live(Symbol v) {
+        for (int level = scopes.size() - 1; level >= 0; level--) {
+            Scope scope = scopes.get(level);
+            int state = scan(scope.statements, scope.position + 1, v);
+            if (state != UNKNOWN) {
+                return state == LIVE;
+            }
+            if (scope.owner != null && scope.owner.kind == Stmt.WHILE) {
+                // the next iteration of the enclosing loop
+                Stmt loop = scope.owner;
+                if (reads(loop.expr, v) || scan(loop.body, 0, v) == LIVE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int scan(List<Stmt> statements, int from, Symbol v) {
+        for (int i = from; i < statements.size(); i++) {
+            Stmt s = statements.get(i);
+            switch (s.kind) {
+                case Stmt.IF: {
+                    for (Expr condition : s.conditions) {
+                        if (reads(condition, v)) {
+                            return LIVE;
+                        }
+                    }
+                    boolean dead = s.otherwise != null;
+                    for (List<Stmt> branch : s.branches) {
+                        int state = scan(branch, 0, v);
+                        if (state == LIVE) {
+                            return LIVE;
+                        }
+                        dead &= state == DEAD;
+                    }
+                    if (s.otherwise != null) {
+                        int state = scan(s.otherwise, 0, v);
+                        if (state == LIVE) {
+                            return LIVE;
+                        }
+                        dead &= state == DEAD;
+                    }
+                    if (dead) {
+                        return DEAD;
+                    }
+                    break;
+                }
+                case Stmt.WHILE: {
+                    Effects loop = new Effects();
+                    loop.collect(s.expr);
+                    if (!collect(s.body, loop) || loop.readsLocals.get(v.index) || loop.writesLocals.get(v.index)) {
+                        return LIVE;
+                    }
+                    break;
+                }
+                case Stmt.RETURN:
+                    return s.expr != null && reads(s.expr, v) ? LIVE : DEAD;
+                case Stmt.EXPR:
+                    if (reads(s.expr, v)) {
+                        return LIVE;
+                    }
+                    if (s.expr.kind == Expr.ASSIGN && s.expr.symbol == v) {
+                        return DEAD;
+                    }
+                    break;
+                default:
+                    // asm, and break and continue going elsewhere
+                    return LIVE;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean reads(Expr e, Symbol v) {
+        return Effects.of(e).readsLocals.get(v.index);
+    }
+
+    /**
+     * Replaces the invariant expressions of the loop by locals, adding their assignments to {@link #prelude} and
+     * {@link #setup}.
+     *
+     * @param entered true if the setup only runs when the loop is entered, so faulting expressions may be moved
+     */
+    private void hoist(Stmt s, boolean entered) {
+        effects = new Effects();
+        effects.collect(s.expr);
+        if (!collect(s.body, effects)) {
+            return;
+        }
+        Rewriter hoister = new Rewriter() {
+            @Override
+            Expr replacement(Expr e, boolean mayFault) {
+                if (invariant(e) && !isCondition(e) && (mayFault || !mayFault(e))) {
+                    return Expr.variable(temporary(e));
+                }
+                return null;
+            }
+        };
+        inCondition = true;
+        s.expr = hoister.rewrite(s.expr, entered);
+        inCondition = false;
+        boolean straight = entered;
+        for (Stmt b : s.body) {
+            straight &= b.kind == Stmt.EXPR && !calls(b.expr);
+            hoister.rewrite(b, straight);
+        }
+    }
+
+    /**
+     * Adds the reads and writes of the statements to {@code effects}.
+     *
+     * @return false if there is an asm block, which may change any local
+     */
+    private static boolean collect(List<Stmt> statements, Effects effects) {
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.ASM:
+                    return false;
+                case Stmt.IF:
+                    for (Expr condition : s.conditions) {
+                        effects.collect(condition);
+                    }
+                    for (List<Stmt> branch : s.branches) {
+                        if (!collect(branch, effects)) {
+                            return false;
+                        }
+                    }
+                    if (s.otherwise != null && !collect(s.otherwise, effects)) {
+                        return false;
+                    }
+                    break;
+                case Stmt.WHILE:
+                    effects.collect(s.expr);
+                    if (s.setup != null && !collect(s.setup, effects) || !collect(s.body, effects)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (s.expr != null) {
+                        effects.collect(s.expr);
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the expressions of the statements, including those of nested statements.
+     */
+    private static void expressions(List<Stmt> statements, List<Expr> into) {
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.IF:
+                    into.addAll(s.conditions);
+                    for (List<Stmt> branch : s.branches) {
+                        expressions(branch, into);
+                    }
+                    if (s.otherwise != null) {
+                        expressions(s.otherwise, into);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    if (s.guard != null) {
+                        into.add(s.guard);
+                    }
+                    if (s.setup != null) {
+                        expressions(s.setup, into);
+                    }
+                    into.add(s.expr);
+                    expressions(s.body, into);
+                    break;
+                default:
+                    if (s.expr != null) {
+                        into.add(s.expr);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the expressions of statements top-down: a node {@link #replacement} keeps is left as it is and its
+     * operands are visited. Nodes on the way to a replaced one are copied rather than changed, because
+     * expressions are shared: the entry test of a rotated loop is its original condition, and unrolled copies
+     * of a body share the expressions of the body.
+     */
+    private abstract static class Rewriter {
+        /**
+         * @param mayFault true if the node is evaluated whenever the loop is entered
+         * @return the node to put in place of {@code e}, or null to keep it
+         */
+        abstract Expr replacement(Expr e, boolean mayFault);
+
+        /**
+         * Rewrites the condition and the body of a loop.
+         */
+        void loop(Stmt s) {
+            s.expr = rewrite(s.expr, false);
+            rewrite(s.body, false);
+        }
+
+        void rewrite(List<Stmt> statements, boolean mayFault) {
+            for (Stmt s : statements) {
+                rewrite(s, mayFault);
+            }
+        }
+
+        void rewrite(Stmt s, boolean mayFault) {
+            switch (s.kind) {
+                case Stmt.IF:
+                    for (int i = 0; i < s.conditions.size(); i++) {
+                        s.conditions.set(i, rewrite(s.conditions.get(i), false));
+                    }
+                    for (List<Stmt> branch : s.branches) {
+                        rewrite(branch, false);
+                    }
+                    if (s.otherwise != null) {
+                        rewrite(s.otherwise, false);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    if (s.guard != null) {
+                        s.guard = rewrite(s.guard, false);
+                    }
+                    if (s.setup != null) {
+                        rewrite(s.setup, false);
+                    }
+                    s.expr = rewrite(s.expr, false);
+                    rewrite(s.body, false);
+                    break;
+                default:
+                    if (s.expr != null) {
+                        s.expr = rewrite(s.expr, mayFault);
+                    }
+                    break;
+            }
+        }
+
+        Expr rewrite(Expr e, boolean mayFault) {
+            if (e.left == null && e.rhs == null && e.args == null) {
+                return e;
+            }
+            Expr replaced = replacement(e, mayFault);
+            if (replaced != null) {
+                return replaced;
+            }
+            Expr left = e.left == null ? null : rewrite(e.left, mayFault);
+            Expr right = e.right == null ? null : rewrite(e.right, mayFault);
+            Expr rhs = e.rhs == null ? null : rewrite(e.rhs, mayFault);
+            Expr[] args = e.args;
+            if (args != null) {
+                for (int i = 0; i < args.length; i++) {
+                    Expr arg = rewrite(args[i], mayFault);
+                    if (arg != args[i]) {
+                        if (args == e.args) {
+                            args = args.clone();
+                        }
+                        args[i] = arg;
+                    }
+                }
+            }
+            if (left == e.left && right == e.right && rhs == e.rhs && args == e.args) {
+                return e;
+            }
+            Expr copy = new Expr(e.kind);
+            copy.symbol = e.symbol;
+            copy.left = left;
+            copy.right = right;
+            copy.rhs = rhs;
+            copy.args = args;
+            return copy;
+        }
+    }
+
+    /**
+     * @return the local {@code e} is assigned to in front of the loop, allocating it on the first request
+     */
+    private Symbol temporary(Expr e) {
+        int i = indexOf(e);
+        if (i >= 0) {
+            return temporaries.get(i);
+        }
+        Symbol temp = function.newLocal();
+        invariants.add(e);
+        temporaries.add(temp);
+        (inCondition ? prelude : setup).add(assign(temp, e));
+        hoisted++;
+        return temp;
+    }
+
+    /**
+     * @return the position of {@code e} among the invariants moved so far, -1 if it is not one
+     */
+    private int indexOf(Expr e) {
+        for (int i = 0; i < invariants.size(); i++) {
+            if (same(invariants.get(i), e)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Stmt assign(Symbol symbol, Expr value) {
+        Expr assign = new Expr(Expr.ASSIGN);
+        assign.symbol = symbol;
+        assign.rhs = value;
+        return Stmt.of(Stmt.EXPR, assign);
+    }
+
+    private boolean invariant(Expr e) {
+        switch (e.kind) {
+            case Expr.NUMBER:
+            case Expr.CHAR:
+            case Expr.STRING:
+                return true;
+            case Expr.LOCAL:
+                return !effects.writesLocals.get(e.symbol.index);
+            case Expr.GLOBAL:
+                return !effects.writesGlobals;
+            case Expr.INDEX:
+            case Expr.BYTE_INDEX:
+                return !effects.writesMemory && invariant(e.left) && invariant(e.right);
+            case Expr.NOT:
+            case Expr.NEG:
+                return invariant(e.left);
+            default:
+                return e.isBinary() && invariant(e.left) && invariant(e.right);
+        }
+    }
+
+    /**
+     * @return true for a value only used as a condition; these are left in place for compare-and-jump
+     */
+    private static boolean isCondition(Expr e) {
+        switch (e.kind) {
+            case Expr.NOT:
+                return true;
+            case Expr.AND:
+            case Expr.OR:
+                return isCondition(e.left) || isCondition(e.right);
+            default:
+                return e.isComparison();
+        }
+    }
+
+    /**
+     * @return true if evaluating {@code e} may fault: a load, or a division by zero or of the minimum by -1
+     */
+    private static boolean mayFault(Expr e) {
+        switch (e.kind) {
+            case Expr.INDEX:
+            case Expr.BYTE_INDEX:
+                return true;
+            case Expr.DIV:
+            case Expr.MOD:
+                if (!e.right.isConstant() || e.right.number == 0 || e.right.number == -1) {
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        return e.left != null && mayFault(e.left) || e.right != null && mayFault(e.right);
+    }
+
+    private static boolean calls(Expr e) {
+        if (e.kind == Expr.CALL) {
+            return true;
+        }
+        return e.left != null && calls(e.left) || e.right != null && calls(e.right) || e.rhs != null && calls(e.rhs);
+    }
+
+    private static int assignments(Expr e, Symbol v) {
+        int n = e.kind == Expr.ASSIGN && e.symbol == v ? 1 : 0;
+        if (e.left != null) n += assignments(e.left, v);
+        if (e.right != null) n += assignments(e.right, v);
+        if (e.rhs != null) n += assignments(e.rhs, v);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                n += assignments(arg, v);
+            }
+        }
+        return n;
+    }
+
+    private static boolean isVariable(Expr e, Symbol symbol) {
+        return e.kind == Expr.LOCAL && e.symbol == symbol;
+    }
+
+    private static boolean same(Expr a, Expr b) {
+        if (a.kind != b.kind) {
+            return false;
+        }
+        switch (a.kind) {
+            case Expr.NUMBER:
+                return a.number == b.number && (a.big == null ? b.big == null : a.big.equals(b.big));
+            case Expr.CHAR:
+            case Expr.STRING:
+                return a.token == b.token;
+            case Expr.LOCAL:
+            case Expr.GLOBAL:
+                return a.symbol == b.symbol;
+            default:
+                return same(a.left, b.left) && (a.right == null || same(a.right, b.right));
+        }
+    }
+}
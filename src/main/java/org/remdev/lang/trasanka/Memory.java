@@ -0,0 +1,164 @@
+package org.remdev.lang.trasanka;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory of the programs run by {@link JvmBackend} and {@link Vm}: one little-endian off-heap buffer, a pointer
+ * being an offset into it. Address 0 is never handed out, so it stays the null pointer.
+ * <p>
+ * The compiled code and the interpreter read and write words and bytes through the static accessors, which the JIT
+ * inlines.
+ * Allocation moves a pointer forward; a block carries its size in the word before it for {@code realloc}, and
+ * the buffer is replaced by one twice as large when it is full.
+ */
+public final class Memory {
+    private static final int ALIGNMENT = 16;
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    private static ByteBuffer data = buffer(INITIAL_SIZE);
+    private static int top = ALIGNMENT;
+
+    private Memory() {
+    }
+
+    public static long load(long address) {
+        return data.getLong(at(address));
+    }
+
+    /**
+     * @return {@code value}
+     */
+    public static long store(long address, long value) {
+        data.putLong(at(address), value);
+        return value;
+    }
+
+    public static long loadByte(long address) {
+        return data.get(at(address)) & 0xFF;
+    }
+
+    /**
+     * @return {@code value}
+     */
+    public static long storeByte(long address, long value) {
+        data.put(at(address), (byte) value);
+        return value;
+    }
+
+    /**
+     * Places a string literal in memory; the compiled classes call this from their static initializers.
+     *
+     * @param bytes the bytes of the literal, terminating zero included, as the chars 0 to 255
+     * @return its address
+     */
+    public static long literal(String bytes) {
+        long address = allocate(bytes.length());
+        for (int i = 0; i < bytes.length(); i++) {
+            data.put((int) address + i, (byte) bytes.charAt(i));
+        }
+        return address;
+    }
+
+    /**
+     * @return the address of a new block of {@code size} bytes, or 0 if memory is exhausted
+     */
+    static long allocate(long size) {
+        long start = top + 8;
+        start = (start + ALIGNMENT - 1) & -ALIGNMENT;
+        long end = start + Math.max(size, 0);
+        if (size < 0 || end > Integer.MAX_VALUE) {
+            return 0;
+        }
+        if (end > data.capacity()) {
+            ByteBuffer bigger = buffer((int) Math.min(Math.max(end, 2L * data.capacity()), Integer.MAX_VALUE));
+            data.clear();
+            bigger.put(data);
+            data = bigger;
+        }
+        data.putLong((int) start - 8, size);
+        top = (int) end;
+        return start;
+    }
+
+    /**
+     * @return the size {@code address} was allocated with
+     */
+    static long blockSize(long address) {
+        return load(address - 8);
+    }
+
+    static void copy(long to, long from, long length) {
+        for (long i = 0; i < length; i++) {
+            data.put(at(to + i), data.get(at(from + i)));
+        }
+    }
+
+    static void fill(long address, int value, long length) {
+        for (long i = 0; i < length; i++) {
+            data.put(at(address + i), (byte) value);
+        }
+    }
+
+    /**
+     * @return the bytes of the zero-terminated string at {@code address}, the zero excluded
+     */
+    static byte[] bytes(long address) {
+        int length = (int) length(address);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = data.get(at(address + i));
+        }
+        return bytes;
+    }
+
+    static String string(long address) {
+        return new String(bytes(address), StandardCharsets.UTF_8);
+    }
+
+    static long length(long address) {
+        long end = address;
+        while (data.get(at(end)) != 0) {
+            end++;
+        }
+        return end - address;
+    }
+
+    /**
+     * Copies {@code bytes} and a terminating zero into a new block.
+     *
+     * @return its address
+     */
+    static long put(byte[] bytes) {
+        long address = allocate(bytes.length + 1);
+        for (int i = 0; i < bytes.length; i++) {
+            data.put((int) address + i, bytes[i]);
+        }
+        return address;
+    }
+
+    /**
+     * Places the arguments of a program in memory.
+     *
+     * @return the address of the array of pointers to them, terminated by a null pointer
+     */
+    static long argv(String[] args) {
+        long address = allocate(8L * (args.length + 1));
+        for (int i = 0; i < args.length; i++) {
+            store(address + 8L * i, put(args[i].getBytes(StandardCharsets.UTF_8)));
+        }
+        return address;
+    }
+
+    private static int at(long address) {
+        if (address <= 0 || address >= top) {
+            throw new IndexOutOfBoundsException("bad address " + address);
+        }
+        return (int) address;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,231 @@
+package org.remdev.lang.trasanka;
+
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiler switches.
+ * <p>
+ * {@code -O0} is the "no-opt" mode: the IR is lowered exactly the way the single-pass compiler used to print it,
+ * which keeps the output comparable byte-for-byte across changes of the back end.
+ */
+public class Options {
+    private static final int DEFAULT_UNROLL = 4;
+    private static final int MAX_UNROLL = 64;
+
+    public boolean optimize = true;
+    // -finline-functions: small non-recursive functions are expanded at their call sites
+    public boolean inlineFunctions = true;
+    // -ffold: constant folding and propagation of constant locals
+    public boolean fold = true;
+    // -ffuse-branches: compare-and-jump for conditions of if/elif/while
+    public boolean fuseBranches = true;
+    // -fregister-locals: keep the most used locals in callee-saved registers
+    public boolean registerLocals = true;
+    // -fsethi-ullman: evaluation order by register need and the full set of scratch registers
+    public boolean sethiUllman = true;
+    // -fcall-regs: arguments go straight to their registers, al is only cleared for external callees
+    public boolean callRegs = true;
+    // -fstrength-reduce: shifts, lea and reciprocal multiplication for constant multipliers and divisors
+    public boolean strengthReduce = true;
+    // -fisel: immediate and memory operands, lea, displacements, RIP-relative globals
+    public boolean isel = true;
+    // -fjump-tables: an elif chain comparing one variable with constants jumps through a table or a binary search
+    public boolean jumpTables = true;
+    // -frotate-loops: test the condition of a while loop once on entry and then at the bottom
+    public boolean rotateLoops = true;
+    // -fmove-loop-invariants: compute expressions a loop does not change once before entering it
+    public boolean moveInvariants = true;
+    // -finduction-variables: counter * c stepped by additions, array indexing by a counter turned into a pointer
+    public boolean inductionVariables = true;
+    // -funroll-loops[=<n>]: copies of the body of a counted loop per test of the condition, 1 does not unroll
+    public int unroll = 1;
+    // -ftail-calls: return f(...) jumps to f, a function calling itself that way loops instead
+    public boolean tailCalls = true;
+    // -fomit-frame-pointer: leaf functions address their frame in the red zone through rsp, without rbp;
+    // -fno-omit-frame-pointer keeps the rbp chain for profilers
+    public boolean omitFramePointer = true;
+    // -fmerge-constants: equal string literals share one label, literals and jump tables are written to a single
+    // .rodata section after the code
+    public boolean mergeConstants = true;
+    // -fpeephole: rewriting of the emitted instructions; single rules are switched off with -fno-peephole-<rule>
+    public boolean peephole = true;
+    public final Set<String> disabledRules = new HashSet<>();
+    // -j<n>: functions are generated on n threads, -j1 generates them one after another on the calling thread
+    public int threads = Runtime.getRuntime().availableProcessors();
+    // -stats: print what the optimizations did to statsOut
+    public boolean stats;
+    // where -stats prints, stderr unless the caller wants the lines elsewhere
+    public PrintStream statsOut = System.err;
+    // -c: write a relocatable ELF64 object instead of assembly text
+    public boolean object;
+    // -jvm: compile to a JVM class and run it in-process, the arguments after the source being the program's
+    public boolean jvm;
+    // -vm: compile to register bytecode and interpret it, the arguments after the source being the program's
+    public boolean vm;
+
+    /**
+     * Consumes the switches from {@code args}; everything else is collected into {@code files}.
+     *
+     * @throws IllegalArgumentException for a switch that is not known
+     */
+    public static Options parse(String[] args, List<String> files) {
+        Options options = new Options();
+        for (String arg : args) {
+            if (!arg.startsWith("-") || arg.length() == 1) {
+                files.add(arg);
+            } else if (!options.set(arg)) {
+                throw new IllegalArgumentException("неизвестный ключ: " + arg);
+            }
+        }
+        return options;
+    }
+
+    boolean set(String arg) {
+        switch (arg) {
+            case "-O0":
+                level(false);
+                return true;
+            case "-O":
+            case "-O1":
+                level(true);
+                return true;
+            case "-ffold":
+            case "-fno-fold":
+                fold = !arg.startsWith("-fno-");
+                return true;
+            case "-ffuse-branches":
+            case "-fno-fuse-branches":
+                fuseBranches = !arg.startsWith("-fno-");
+                return true;
+            case "-fregister-locals":
+            case "-fno-register-locals":
+                registerLocals = !arg.startsWith("-fno-");
+                return true;
+            case "-fsethi-ullman":
+            case "-fno-sethi-ullman":
+                sethiUllman = !arg.startsWith("-fno-");
+                return true;
+            case "-fcall-regs":
+            case "-fno-call-regs":
+                callRegs = !arg.startsWith("-fno-");
+                return true;
+            case "-fstrength-reduce":
+            case "-fno-strength-reduce":
+                strengthReduce = !arg.startsWith("-fno-");
+                return true;
+            case "-fisel":
+            case "-fno-isel":
+                isel = !arg.startsWith("-fno-");
+                return true;
+            case "-finline-functions":
+            case "-fno-inline-functions":
+                inlineFunctions = !arg.startsWith("-fno-");
+                return true;
+            case "-fjump-tables":
+            case "-fno-jump-tables":
+                jumpTables = !arg.startsWith("-fno-");
+                return true;
+            case "-frotate-loops":
+            case "-fno-rotate-loops":
+                rotateLoops = !arg.startsWith("-fno-");
+                return true;
+            case "-fmove-loop-invariants":
+            case "-fno-move-loop-invariants":
+                moveInvariants = !arg.startsWith("-fno-");
+                return true;
+            case "-finduction-variables":
+            case "-fno-induction-variables":
+                inductionVariables = !arg.startsWith("-fno-");
+                return true;
+            case "-funroll-loops":
+                unroll = DEFAULT_UNROLL;
+                return true;
+            case "-fno-unroll-loops":
+                unroll = 1;
+                return true;
+            case "-ftail-calls":
+            case "-fno-tail-calls":
+                tailCalls = !arg.startsWith("-fno-");
+                return true;
+            case "-fomit-frame-pointer":
+            case "-fno-omit-frame-pointer":
+                omitFramePointer = !arg.startsWith("-fno-");
+                return true;
+            case "-fmerge-constants":
+            case "-fno-merge-constants":
+                mergeConstants = !arg.startsWith("-fno-");
+                return true;
+            case "-fpeephole":
+            case "-fno-peephole":
+                peephole = !arg.startsWith("-fno-");
+                return true;
+            case "-stats":
+                stats = true;
+                return true;
+            case "-c":
+                object = true;
+                return true;
+            case "-jvm":
+                jvm = true;
+                return true;
+            case "-vm":
+                vm = true;
+                return true;
+            default:
+                if (arg.startsWith("-funroll-loops=")) {
+                    unroll = count(arg.substring(15));
+                    return unroll > 0;
+                }
+                if (arg.startsWith("-j")) {
+                    threads = threads(arg.substring(2));
+                    return threads > 0;
+                }
+                if (arg.startsWith("-fno-peephole-") && Peephole.isRule(arg.substring(14))) {
+                    disabledRules.add(arg.substring(14));
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    private static int count(String text) {
+        try {
+            int n = Integer.parseInt(text);
+            return n <= MAX_UNROLL ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int threads(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void level(boolean on) {
+        optimize = on;
+        inlineFunctions = on;
+        fold = on;
+        fuseBranches = on;
+        registerLocals = on;
+        sethiUllman = on;
+        callRegs = on;
+        strengthReduce = on;
+        isel = on;
+        jumpTables = on;
+        rotateLoops = on;
+        moveInvariants = on;
+        inductionVariables = on;
+        unroll = 1;
+        tailCalls = on;
+        omitFramePointer = on;
+        mergeConstants = on;
+        peephole = on;
+    }
+}
@@ -0,0 +1,336 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.Insn.Operand;
+
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Window-based rewriting of the recorded instructions.
+ * <p>
+ * Every rule looks at the instruction at the current position and a few following it. Rules are applied until
+ * none of them matches; each can be switched off by name and counts how often it fired.
+ */
+public final class Peephole {
+    public static final String[] RULES = {
+            "push-pop", "self-move", "zero-move", "jump-next", "branch-over-jump", "unreachable", "section",
+    };
+    private static final int PUSH_POP = 0;
+    private static final int SELF_MOVE = 1;
+    private static final int ZERO_MOVE = 2;
+    private static final int JUMP_NEXT = 3;
+    private static final int BRANCH_OVER_JUMP = 4;
+    private static final int UNREACHABLE = 5;
+    private static final int SECTION = 6;
+
+    // how far a push may be from its pop
+    private static final int WINDOW = 8;
+
+    private final boolean[] enabled = new boolean[RULES.length];
+    private final int[] hits = new int[RULES.length];
+    // section in effect at the end of the previous run, null if unknown
+    private String section;
+
+    public Peephole(Collection<String> disabled) {
+        for (int i = 0; i < RULES.length; i++) {
+            enabled[i] = !disabled.contains(RULES[i]);
+        }
+    }
+
+    public static boolean isRule(String name) {
+        for (String rule : RULES) {
+            if (rule.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void run(List<Insn> insns) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < insns.size(); i++) {
+                changed |= rewrite(insns, i);
+            }
+        }
+        if (enabled[SECTION]) {
+            sections(insns);
+        }
+    }
+
+    /**
+     * Adds the counts of {@code other} to the ones of this pass.
+     */
+    public void add(Peephole other) {
+        for (int i = 0; i < RULES.length; i++) {
+            hits[i] += other.hits[i];
+        }
+    }
+
+    public void report(PrintStream out) {
+        for (int i = 0; i < RULES.length; i++) {
+            out.println("peephole " + RULES[i] + ": " + hits[i]);
+        }
+    }
+
+    private boolean rewrite(List<Insn> insns, int i) {
+        Insn insn = insns.get(i);
+        if (insn.kind != Insn.OP) {
+            return false;
+        }
+        switch (insn.op) {
+            case "push":
+                return enabled[PUSH_POP] && pushPop(insns, i);
+            case "mov":
+                return enabled[SELF_MOVE] && selfMove(insns, i)
+                        || enabled[ZERO_MOVE] && zeroMove(insns, i);
+            case "jmp":
+                return enabled[JUMP_NEXT] && jumpNext(insns, i)
+                        || enabled[UNREACHABLE] && unreachable(insns, i);
+            case "ret":
+                return enabled[UNREACHABLE] && unreachable(insns, i);
+            default:
+                return enabled[BRANCH_OVER_JUMP] && inverse(insn.op) != null && branchOverJump(insns, i);
+        }
+    }
+
+    /**
+     * {@code push X ... pop Y} becomes {@code mov Y, X} if nothing in between touches the stack or Y.
+     */
+    private boolean pushPop(List<Insn> insns, int i) {
+        Operand x = insns.get(i).operands[0];
+        if (x.kind != Operand.REG) {
+            return false;
+        }
+        for (int j = i + 1; j < insns.size() && j <= i + WINDOW; j++) {
+            Insn insn = insns.get(j);
+            if (insn.is("pop") && insn.operands[0].kind == Operand.REG) {
+                String y = insn.operands[0].name;
+                for (int k = i + 1; k < j; k++) {
+                    if (insns.get(k).mentions(y)) {
+                        return false;
+                    }
+                }
+                insns.remove(j);
+                if (x.name.equals(y)) {
+                    insns.remove(i);
+                } else {
+                    insns.set(i, Insn.op("mov", Operand.reg(y), x));
+                }
+                hits[PUSH_POP]++;
+                return true;
+            }
+            if (!isPlain(insn) || insn.mentions("rsp")) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean selfMove(List<Insn> insns, int i) {
+        Operand[] o = insns.get(i).operands;
+        // a 32-bit move to itself clears the upper half, so only the full registers qualify
+        if (o[0].kind == Operand.REG && o[1].isReg(o[0].name) && o[0].name.equals(Insn.qword(o[0].name))) {
+            insns.remove(i);
+            hits[SELF_MOVE]++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean zeroMove(List<Insn> insns, int i) {
+        Operand[] o = insns.get(i).operands;
+        if (o[0].kind == Operand.REG && o[1].isImm(0) && o[0].name.equals(Insn.qword(o[0].name))
+                && !flagsLive(insns, i + 1)) {
+            String r = Insn.dword(o[0].name);
+            insns.set(i, Insn.op("xor", Operand.reg(r), Operand.reg(r)));
+            hits[ZERO_MOVE]++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean jumpNext(List<Insn> insns, int i) {
+        Operand target = insns.get(i).operands[0];
+        if (target.kind != Operand.TARGET) {
+            return false;
+        }
+        for (int j = i + 1; j < insns.size() && insns.get(j).kind == Insn.LABEL; j++) {
+            if (insns.get(j).isLabel(target.name, target.value)) {
+                insns.remove(i);
+                hits[JUMP_NEXT]++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@code jcc L1; jmp L2; L1:} becomes {@code jncc L2; L1:}.
+     */
+    private boolean branchOverJump(List<Insn> insns, int i) {
+        if (i + 2 >= insns.size()) {
+            return false;
+        }
+        Insn branch = insns.get(i);
+        Insn jump = insns.get(i + 1);
+        Operand skip = branch.operands[0];
+        if (!jump.is("jmp") || jump.operands[0].kind != Operand.TARGET
+                || !insns.get(i + 2).isLabel(skip.name, skip.value)) {
+            return false;
+        }
+        insns.set(i, Insn.op(inverse(branch.op), jump.operands[0]));
+        insns.remove(i + 1);
+        hits[BRANCH_OVER_JUMP]++;
+        return true;
+    }
+
+    /**
+     * Drops an instruction following {@code jmp} or {@code ret}; labels, directives and asm lines stay.
+     */
+    private boolean unreachable(List<Insn> insns, int i) {
+        if (i + 1 < insns.size()) {
+            Insn next = insns.get(i + 1);
+            if (next.kind == Insn.OP && !next.isDirective()) {
+                insns.remove(i + 1);
+                hits[UNREACHABLE]++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes switches to the section already in effect and switches immediately followed by another one.
+     */
+    private void sections(List<Insn> insns) {
+        for (int i = 0; i < insns.size(); i++) {
+            String name = section(insns.get(i));
+            if (name == null) {
+                continue;
+            }
+            if (name.equals(section) || i + 1 < insns.size() && section(insns.get(i + 1)) != null) {
+                insns.remove(i--);
+                hits[SECTION]++;
+            } else {
+                section = name;
+            }
+        }
+    }
+
+    private static String section(Insn insn) {
+        if (insn.kind != Insn.OP) {
+            return null;
+        }
+        switch (insn.op) {
+            case ".text":
+            case ".data":
+            case ".bss":
+                return insn.op;
+            case ".section":
+                return insn.operands[0].name;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return true unless the flags are certainly overwritten before anything reads them
+     */
+    private static boolean flagsLive(List<Insn> insns, int from) {
+        for (int i = from; i < insns.size(); i++) {
+            Insn insn = insns.get(i);
+            if (insn.kind != Insn.OP) {
+                return true;
+            }
+            switch (insn.op) {
+                case "cmp":
+                case "test":
+                case "add":
+                case "sub":
+                case "and":
+                case "or":
+                case "xor":
+                case "imul":
+                case "neg":
+                case "call":
+                case "ret":
+                    return false;
+                case "mov":
+                case "movzx":
+                case "lea":
+                case "push":
+                case "pop":
+                case "leave":
+                    break;
+                default:
+                    if (!insn.isDirective()) {
+                        return true;
+                    }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true for an instruction that has no effect besides its explicit operands and the flags
+     */
+    private static boolean isPlain(Insn insn) {
+        if (insn.kind != Insn.OP) {
+            return false;
+        }
+        switch (insn.op) {
+            case "mov":
+            case "movzx":
+            case "lea":
+            case "add":
+            case "sub":
+            case "and":
+            case "or":
+            case "xor":
+            case "imul":
+            case "neg":
+            case "cmp":
+            case "test":
+                return insn.operands.length == 2 || insn.op.equals("neg");
+            default:
+                return insn.op.startsWith("set");
+        }
+    }
+
+    /**
+     * @return the conditional jump taken exactly when {@code jcc} is not, or null for other instructions
+     */
+    static String inverse(String jcc) {
+        switch (jcc) {
+            case "jz":
+                return "jnz";
+            case "jnz":
+                return "jz";
+            case "je":
+                return "jne";
+            case "jne":
+                return "je";
+            case "jl":
+                return "jge";
+            case "jge":
+                return "jl";
+            case "jg":
+                return "jle";
+            case "jle":
+                return "jg";
+            case "jb":
+                return "jae";
+            case "jae":
+                return "jb";
+            case "ja":
+                return "jbe";
+            case "jbe":
+                return "ja";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.util.List;
+
+/**
+ * Chooses the locals of a function that live in callee-saved registers for the whole call.
+ * <p>
+ * Every read and write of a local is weighted by the loop nesting it occurs in and the heaviest locals get
+ * a register; the rest stay in their stack slots. Functions with {@code asm:} blocks are left alone since the
+ * assembly may address locals through {@code rbp} or clobber the registers.
+ */
+public final class RegisterAllocator {
+    // uses inside a loop count this many times more than outside
+    private static final long LOOP_WEIGHT = 8;
+    private static final int MAX_DEPTH = 6;
+
+    private final long[] weights;
+    private boolean asm;
+
+    private RegisterAllocator(int locals) {
+        weights = new long[locals];
+    }
+
+    /**
+     * @return register of every local (indexed by {@code Symbol.index}), null for locals kept on the stack
+     */
+    public static String[] allocate(Function function, String[] registers) {
+        RegisterAllocator allocator = new RegisterAllocator(function.locals.size());
+        allocator.statementList(function.body, 0);
+        String[] home = new String[function.locals.size()];
+        if (allocator.asm) {
+            return home;
+        }
+        for (String register : registers) {
+            int best = -1;
+            for (int i = 0; i < home.length; i++) {
+                if (home[i] == null && allocator.weights[i] > 0
+                        && (best < 0 || allocator.weights[i] > allocator.weights[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            home[best] = register;
+        }
+        return home;
+    }
+
+    private void statementList(List<Stmt> statements, int depth) {
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.ASM:
+                    asm = true;
+                    break;
+                case Stmt.IF:
+                    for (Expr condition : s.conditions) {
+                        expression(condition, depth);
+                    }
+                    for (List<Stmt> branch : s.branches) {
+                        statementList(branch, depth);
+                    }
+                    if (s.otherwise != null) {
+                        statementList(s.otherwise, depth);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    if (s.guard != null) {
+                        expression(s.guard, depth);
+                    }
+                    if (s.setup != null) {
+                        statementList(s.setup, depth);
+                    }
+                    expression(s.expr, depth + 1);
+                    statementList(s.body, depth + 1);
+                    break;
+                default:
+                    if (s.expr != null) {
+                        expression(s.expr, depth);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void expression(Expr e, int depth) {
+        if (e.kind == Expr.LOCAL || e.kind == Expr.ASSIGN && e.symbol.kind == Symbol.LOCAL) {
+            long weight = 1;
+            for (int i = Math.min(depth, MAX_DEPTH); i > 0; i--) {
+                weight *= LOOP_WEIGHT;
+            }
+            weights[e.symbol.index] += weight;
+        }
+        if (e.left != null) expression(e.left, depth);
+        if (e.right != null) expression(e.right, depth);
+        if (e.rhs != null) expression(e.rhs, depth);
+        if (e.args != null) {
+            for (Expr arg : e.args) {
+                expression(arg, depth);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.remdev.lang.trasanka;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Whole source file decoded into a single {@code char[]} that the scanner walks by index.
+ * Files above {@link #MAP_THRESHOLD} are memory-mapped instead of being copied through a heap buffer.
+ */
+public final class SourceBuffer {
+    static final long MAP_THRESHOLD = 1 << 20;
+    private static final int READ_CHUNK = 8192;
+
+    private final char[] chars;
+    private final int length;
+
+    private SourceBuffer(char[] chars, int length) {
+        this.chars = chars;
+        this.length = length;
+    }
+
+    public static SourceBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("исходный файл слишком большой: " + path);
+            }
+            ByteBuffer bytes;
+            if (size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                    // read until the buffer is full or EOF
+                }
+                bytes.flip();
+            }
+            return decode(bytes);
+        }
+    }
+
+    /**
+     * Reads the channel to its end; it is not closed.
+     */
+    public static SourceBuffer read(ReadableByteChannel channel) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(READ_CHUNK);
+        while (channel.read(bytes) >= 0) {
+            if (!bytes.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(bytes.capacity() * 2);
+                bytes.flip();
+                bigger.put(bytes);
+                bytes = bigger;
+            }
+        }
+        bytes.flip();
+        return decode(bytes);
+    }
+
+    public static SourceBuffer of(CharSequence text) {
+        char[] chars = text.toString().toCharArray();
+        return new SourceBuffer(chars, chars.length);
+    }
+
+    static SourceBuffer decode(ByteBuffer bytes) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // UTF-8 never yields more chars than bytes
+        char[] chars = new char[bytes.remaining()];
+        CharBuffer target = CharBuffer.wrap(chars);
+        decoder.decode(bytes, target, true);
+        decoder.flush(target);
+        return new SourceBuffer(chars, target.position());
+    }
+
+    public char[] chars() {
+        return chars;
+    }
+
+    public int length() {
+        return length;
+    }
+}
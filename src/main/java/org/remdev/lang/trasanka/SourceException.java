@@ -0,0 +1,19 @@
+package org.remdev.lang.trasanka;
+
+/**
+ * Error in the program being compiled, found by the lexer or the parser.
+ */
+public final class SourceException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // line of the source the error was found on, counting from 1
+    public final int line;
+    // what is wrong, without the line
+    public final String reason;
+
+    SourceException(int line, String reason) {
+        super("<" + line + "> : " + reason);
+        this.line = line;
+        this.reason = reason;
+    }
+}
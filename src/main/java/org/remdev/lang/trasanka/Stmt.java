@@ -0,0 +1,52 @@
+package org.remdev.lang.trasanka;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Statement node of the IR built by the parser.
+ */
+public final class Stmt {
+    public static final int ASM = 0;
+    public static final int IF = 1;
+    public static final int WHILE = 2;
+    public static final int BREAK = 3;
+    public static final int CONTINUE = 4;
+    public static final int RETURN = 5;
+    public static final int EXPR = 6;
+
+    public final int kind;
+    // EXPR, RETURN (may be null), WHILE condition
+    public Expr expr;
+    // WHILE body
+    public List<Stmt> body;
+    // WHILE rotated into a bottom-test loop: the test on entry, null if the condition is only tested at the top
+    public Expr guard;
+    // WHILE: statements run once before the first iteration (after the guard), null if none
+    public List<Stmt> setup;
+    // IF: conditions.get(i) guards branches.get(i), the first one being the "if", the rest "elif"
+    public List<Expr> conditions;
+    public List<List<Stmt>> branches;
+    // IF: else branch or null
+    public List<Stmt> otherwise;
+    // ASM: tokens of the asm lines
+    public int firstToken;
+    public int tokenCount;
+
+    public Stmt(int kind) {
+        this.kind = kind;
+    }
+
+    public static Stmt of(int kind, Expr expr) {
+        Stmt s = new Stmt(kind);
+        s.expr = expr;
+        return s;
+    }
+
+    public static Stmt conditional() {
+        Stmt s = new Stmt(IF);
+        s.conditions = new ArrayList<>();
+        s.branches = new ArrayList<>();
+        return s;
+    }
+}
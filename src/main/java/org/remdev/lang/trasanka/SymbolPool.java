@@ -0,0 +1,97 @@
+package org.remdev.lang.trasanka;
+
+import java.util.Arrays;
+
+/**
+ * Interns identifiers into dense int ids. Each distinct name is materialized as a String exactly once.
+ */
+public final class SymbolPool {
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private int count;
+    // open addressing, holds id + 1, 0 means empty
+    private int[] table = new int[512];
+
+    public int intern(char[] s, int offset, int length) {
+        int hash = hash(s, offset, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (int id; (id = table[slot]) != 0; slot = (slot + 1) & mask) {
+            if (hashes[id - 1] == hash && equals(names[id - 1], s, offset, length)) {
+                return id - 1;
+            }
+        }
+        return add(new String(s, offset, length), hash, slot);
+    }
+
+    public int intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * @return id of the name or -1 if it was never interned
+     */
+    public int find(String name) {
+        char[] s = name.toCharArray();
+        int hash = hash(s, 0, s.length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask, id; (id = table[slot]) != 0; slot = (slot + 1) & mask) {
+            if (hashes[id - 1] == hash && name.equals(names[id - 1])) {
+                return id - 1;
+            }
+        }
+        return -1;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        int id = count++;
+        names[id] = name;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        int[] bigger = new int[table.length * 2];
+        int mask = bigger.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = hashes[id] & mask;
+            while (bigger[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            bigger[slot] = id + 1;
+        }
+        table = bigger;
+    }
+
+    private static int hash(char[] s, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + s[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(String name, char[] s, int offset, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != s[offset + i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,196 @@
+package org.remdev.lang.trasanka;
+
+import java.util.Arrays;
+
+/**
+ * Global and function-local scopes keyed by {@link SymbolPool} ids.
+ * <p>
+ * Identifiers that are referenced but never declared (libc's {@code stderr}, functions defined further down)
+ * are entered into the global scope as {@link Symbol#EXTERN} and upgraded once their declaration shows up.
+ */
+public final class SymbolTable {
+
+    public static final class Symbol {
+        public static final int EXTERN = 0;
+        public static final int GLOBAL = 1;
+        public static final int FUNCTION = 2;
+        public static final int LOCAL = 3;
+
+        public final int name;
+        public int kind;
+        // LOCAL: offset below rbp
+        public int offset;
+        // FUNCTION: number of parameters
+        public int arity;
+        // position within its scope, in declaration order
+        public int index;
+
+        Symbol(int name, int kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+    }
+
+    private final Scope globals = new Scope(64);
+    private final Scope locals = new Scope(16);
+
+    /**
+     * Starts a new function scope.
+     */
+    public void enterFunction() {
+        locals.clear();
+    }
+
+    /**
+     * @return the new symbol, or null if the name is already declared in the function
+     */
+    public Symbol declareLocal(int name, int offset) {
+        if (locals.get(name) != null) {
+            return null;
+        }
+        Symbol symbol = locals.put(new Symbol(name, Symbol.LOCAL));
+        symbol.offset = offset;
+        return symbol;
+    }
+
+    /**
+     * @return the symbol, or null if the name is already taken by a function
+     */
+    public Symbol declareGlobal(int name) {
+        Symbol symbol = globals.get(name);
+        if (symbol == null) {
+            return globals.put(new Symbol(name, Symbol.GLOBAL));
+        }
+        if (symbol.kind == Symbol.FUNCTION) {
+            return null;
+        }
+        symbol.kind = Symbol.GLOBAL;
+        return symbol;
+    }
+
+    /**
+     * @return the symbol, or null if a function or a global variable with this name is already defined
+     */
+    public Symbol declareFunction(int name, int arity) {
+        Symbol symbol = globals.get(name);
+        if (symbol == null) {
+            symbol = globals.put(new Symbol(name, Symbol.FUNCTION));
+        } else if (symbol.kind != Symbol.EXTERN) {
+            return null;
+        }
+        symbol.kind = Symbol.FUNCTION;
+        symbol.arity = arity;
+        return symbol;
+    }
+
+    public Symbol lookupLocal(int name) {
+        return locals.get(name);
+    }
+
+    /**
+     * Resolves a reference: a local, then a global; unknown names become {@link Symbol#EXTERN}.
+     */
+    public Symbol reference(int name) {
+        Symbol symbol = locals.get(name);
+        if (symbol != null) {
+            return symbol;
+        }
+        return referenceGlobal(name);
+    }
+
+    /**
+     * Resolves a reference that bypasses the function scope, e.g. the callee of a call.
+     */
+    public Symbol referenceGlobal(int name) {
+        Symbol symbol = globals.get(name);
+        if (symbol == null) {
+            symbol = globals.put(new Symbol(name, Symbol.EXTERN));
+        }
+        return symbol;
+    }
+
+    public Symbol lookupGlobal(int name) {
+        return globals.get(name);
+    }
+
+    public int localCount() {
+        return locals.size;
+    }
+
+    public Symbol local(int index) {
+        return locals.symbols[index];
+    }
+
+    public int globalCount() {
+        return globals.size;
+    }
+
+    public Symbol global(int index) {
+        return globals.symbols[index];
+    }
+
+    /**
+     * Open addressing map from name id to symbol; keeps insertion order for iteration.
+     */
+    private static final class Scope {
+        Symbol[] symbols;
+        int size;
+        // index into symbols + 1, 0 means empty
+        private int[] table;
+
+        Scope(int capacity) {
+            symbols = new Symbol[capacity];
+            table = new int[capacity * 2];
+        }
+
+        Symbol get(int name) {
+            int mask = table.length - 1;
+            for (int slot = mix(name) & mask, i; (i = table[slot]) != 0; slot = (slot + 1) & mask) {
+                if (symbols[i - 1].name == name) {
+                    return symbols[i - 1];
+                }
+            }
+            return null;
+        }
+
+        Symbol put(Symbol symbol) {
+            if (size == symbols.length) {
+                symbols = Arrays.copyOf(symbols, size * 2);
+                rehash(table.length * 2);
+            }
+            symbol.index = size;
+            symbols[size++] = symbol;
+            insert(table, symbol.name, size);
+            return symbol;
+        }
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(symbols, 0, size, null);
+                Arrays.fill(table, 0);
+                size = 0;
+            }
+        }
+
+        private void rehash(int capacity) {
+            table = new int[capacity];
+            for (int i = 0; i < size; i++) {
+                insert(table, symbols[i].name, i + 1);
+            }
+        }
+
+        private static void insert(int[] table, int name, int entry) {
+            int mask = table.length - 1;
+            int slot = mix(name) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry;
+        }
+
+        private static int mix(int name) {
+            int h = name * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
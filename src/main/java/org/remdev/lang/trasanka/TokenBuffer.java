@@ -0,0 +1,73 @@
+package org.remdev.lang.trasanka;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token stream kept as parallel primitive arrays. Text of a token is a slice
+ * {@code [start, start + length)} of the source buffer; {@code value} holds the symbol id of an identifier,
+ * the value of a number literal, the code of a character literal (-1 if it is not plain ASCII)
+ * or 1 for a {@code '-'} that is immediately followed by a digit.
+ */
+public final class TokenBuffer {
+    final char[] source;
+    int[] kind;
+    int[] start;
+    int[] length;
+    int[] line;
+    long[] value;
+    int count;
+    // numeric literals that do not fit into a long
+    private Map<Integer, BigInteger> bigNumbers;
+
+    public TokenBuffer(char[] source, int capacity) {
+        this.source = source;
+        capacity = Math.max(capacity, 16);
+        kind = new int[capacity];
+        start = new int[capacity];
+        length = new int[capacity];
+        line = new int[capacity];
+        value = new long[capacity];
+    }
+
+    int add(int kind, int start, int length, int line, long value) {
+        if (count == this.kind.length) {
+            int capacity = count * 2;
+            this.kind = Arrays.copyOf(this.kind, capacity);
+            this.start = Arrays.copyOf(this.start, capacity);
+            this.length = Arrays.copyOf(this.length, capacity);
+            this.line = Arrays.copyOf(this.line, capacity);
+            this.value = Arrays.copyOf(this.value, capacity);
+        }
+        this.kind[count] = kind;
+        this.start[count] = start;
+        this.length[count] = length;
+        this.line[count] = line;
+        this.value[count] = value;
+        return count++;
+    }
+
+    void setBig(int token, BigInteger number) {
+        if (bigNumbers == null) {
+            bigNumbers = new HashMap<>();
+        }
+        bigNumbers.put(token, number);
+    }
+
+    /**
+     * @return the value of a number literal that overflows a long, or null
+     */
+    public BigInteger big(int token) {
+        return bigNumbers == null ? null : bigNumbers.get(token);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String text(int token) {
+        return new String(source, start[token], length[token]);
+    }
+}
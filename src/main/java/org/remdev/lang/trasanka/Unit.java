@@ -0,0 +1,24 @@
+package org.remdev.lang.trasanka;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parsed compilation unit: the functions in source order plus the token stream and names they refer to.
+ */
+public final class Unit {
+    public final SymbolPool symbols;
+    public final TokenBuffer tokens;
+    public final SymbolTable scopes;
+    public final List<Function> functions = new ArrayList<>();
+
+    public Unit(SymbolPool symbols, TokenBuffer tokens, SymbolTable scopes) {
+        this.symbols = symbols;
+        this.tokens = tokens;
+        this.scopes = scopes;
+    }
+
+    public String name(SymbolTable.Symbol symbol) {
+        return symbols.name(symbol.name);
+    }
+}
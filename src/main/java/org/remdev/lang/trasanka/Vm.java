@@ -0,0 +1,340 @@
+package org.remdev.lang.trasanka;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+
+/**
+ * Interpreter of the register bytecode {@link VmBackend} compiles a unit into.
+ * <p>
+ * The code of all functions is one {@code int[]}: an opcode followed by its operands, registers being numbered
+ * from the frame of the function. The frames are windows into one {@code long[]}: the parameters and locals come
+ * first, the temporaries after them, and a call places its arguments in consecutive temporaries that become the
+ * parameters of the callee. Return addresses are kept in an {@code int[]}, so neither calls nor instructions
+ * allocate and recursion does not use the Java stack.
+ * <p>
+ * The loop is a single dense {@code switch} the JIT turns into a jump table; with no computed goto in Java that is
+ * as close to threaded dispatch as it gets. Memory is {@link Memory}, functions outside the unit are the ones of
+ * {@link Libc}.
+ */
+public final class Vm {
+    // r[a] = constant k
+    static final int CONST = 0;
+    // r[a] = r[b]
+    static final int MOV = 1;
+    // r[a] = global g / global g = r[b]
+    static final int GLOAD = 2;
+    static final int GSTORE = 3;
+    // r[a] = op r[b]
+    static final int NEG = 4;
+    static final int NOT = 5;
+    // r[a] = r[b] op r[c]
+    static final int ADD = 6;
+    static final int SUB = 7;
+    static final int MUL = 8;
+    static final int DIV = 9;
+    static final int MOD = 10;
+    static final int AND = 11;
+    static final int OR = 12;
+    static final int LT = 13;
+    static final int GT = 14;
+    static final int LE = 15;
+    static final int GE = 16;
+    static final int EQ = 17;
+    static final int NE = 18;
+    // r[a] = r[b] + immediate
+    static final int ADDI = 19;
+    // jump to t, if r[a] is zero / not zero
+    static final int JMP = 20;
+    static final int JZ = 21;
+    static final int JNZ = 22;
+    // jump to t if r[a] op r[b]
+    static final int JLT = 23;
+    static final int JGT = 24;
+    static final int JLE = 25;
+    static final int JGE = 26;
+    static final int JEQ = 27;
+    static final int JNE = 28;
+    // jump to t if r[a] op immediate
+    static final int JLTI = 29;
+    static final int JGTI = 30;
+    static final int JLEI = 31;
+    static final int JGEI = 32;
+    static final int JEQI = 33;
+    static final int JNEI = 34;
+    // r[a] = word or byte at r[b] + r[c] * size / the same stored from r[d]
+    static final int LOAD = 35;
+    static final int LOADB = 36;
+    static final int STORE = 37;
+    static final int STOREB = 38;
+    // r[a] = function f (of the unit / of the C library) called with the argc registers from base
+    static final int CALL = 39;
+    static final int CALLC = 40;
+    // return r[a]
+    static final int RET = 41;
+
+    private static final int INITIAL_STACK = 1 << 16;
+
+    final int[] code;
+    final long[] constants;
+    final long[] globals;
+    // per function: entry point, parameters, parameters and locals, registers
+    final int[] entries;
+    final int[] params;
+    final int[] locals;
+    final int[] frames;
+    // per C function: the handle taking the arguments as an array, the length of the array or -1 for all of them
+    final MethodHandle[] natives;
+    final int[] arities;
+    // arrays of every length for the arguments of C functions, reused across calls
+    private final long[][] arguments;
+
+    private long executed;
+
+    Vm(int[] code, long[] constants, long[] globals, int[] entries, int[] params, int[] locals, int[] frames,
+       MethodHandle[] natives, int[] arities, int maxArguments) {
+        this.code = code;
+        this.constants = constants;
+        this.globals = globals;
+        this.entries = entries;
+        this.params = params;
+        this.locals = locals;
+        this.frames = frames;
+        this.natives = natives;
+        this.arities = arities;
+        arguments = new long[maxArguments + 1][];
+        for (int i = 0; i <= maxArguments; i++) {
+            arguments[i] = new long[i];
+        }
+    }
+
+    /**
+     * @return the number of instructions run so far
+     */
+    public long executed() {
+        return executed;
+    }
+
+    /**
+     * Runs {@code function} until it returns.
+     *
+     * @return its result
+     */
+    public long execute(int function, long... args) {
+        long[] r = new long[Math.max(INITIAL_STACK, 2 * frames[function])];
+        System.arraycopy(args, 0, r, 0, Math.min(args.length, params[function]));
+        // return address, frame and destination register of the callers
+        int[] calls = new int[3 * 64];
+        int depth = 0;
+        int[] code = this.code;
+        long[] k = constants;
+        long[] g = globals;
+        int fp = 0;
+        int pc = entries[function];
+        long count = 0;
+        try {
+            for (; ; ) {
+                count++;
+                switch (code[pc]) {
+                    case CONST:
+                        r[fp + code[pc + 1]] = k[code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case MOV:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case GLOAD:
+                        r[fp + code[pc + 1]] = g[code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case GSTORE:
+                        g[code[pc + 1]] = r[fp + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case NEG:
+                        r[fp + code[pc + 1]] = -r[fp + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case NOT:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] == 0 ? 1 : 0;
+                        pc += 3;
+                        break;
+                    case ADD:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] + r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case SUB:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] - r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case MUL:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] * r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case DIV:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] / r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case MOD:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] % r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case AND:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] & r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case OR:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] | r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case LT:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] < r[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case GT:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] > r[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case LE:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] <= r[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case GE:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] >= r[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case EQ:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] == r[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case NE:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] != r[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                        break;
+                    case ADDI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] + code[pc + 3];
+                        pc += 4;
+                        break;
+                    case JMP:
+                        pc = code[pc + 1];
+                        break;
+                    case JZ:
+                        pc = r[fp + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                        break;
+                    case JNZ:
+                        pc = r[fp + code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                        break;
+                    case JLT:
+                        pc = r[fp + code[pc + 1]] < r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JGT:
+                        pc = r[fp + code[pc + 1]] > r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JLE:
+                        pc = r[fp + code[pc + 1]] <= r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JGE:
+                        pc = r[fp + code[pc + 1]] >= r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JEQ:
+                        pc = r[fp + code[pc + 1]] == r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JNE:
+                        pc = r[fp + code[pc + 1]] != r[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JLTI:
+                        pc = r[fp + code[pc + 1]] < code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JGTI:
+                        pc = r[fp + code[pc + 1]] > code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JLEI:
+                        pc = r[fp + code[pc + 1]] <= code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JGEI:
+                        pc = r[fp + code[pc + 1]] >= code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JEQI:
+                        pc = r[fp + code[pc + 1]] == code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+                    case JNEI:
+                        pc = r[fp + code[pc + 1]] != code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+                    case LOAD:
+                        r[fp + code[pc + 1]] = Memory.load(r[fp + code[pc + 2]] + 8 * r[fp + code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case LOADB:
+                        r[fp + code[pc + 1]] = Memory.loadByte(r[fp + code[pc + 2]] + r[fp + code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case STORE:
+                        Memory.store(r[fp + code[pc + 1]] + 8 * r[fp + code[pc + 2]], r[fp + code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case STOREB:
+                        Memory.storeByte(r[fp + code[pc + 1]] + r[fp + code[pc + 2]], r[fp + code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case CALL: {
+                        int f = code[pc + 2];
+                        int base = fp + code[pc + 3];
+                        int argc = code[pc + 4];
+                        if (depth + 3 > calls.length) {
+                            calls = Arrays.copyOf(calls, calls.length * 2);
+                        }
+                        calls[depth] = pc + 5;
+                        calls[depth + 1] = fp;
+                        calls[depth + 2] = code[pc + 1];
+                        depth += 3;
+                        if (base + frames[f] > r.length) {
+                            r = Arrays.copyOf(r, Math.max(2 * r.length, base + frames[f]));
+                        }
+                        // missing arguments and the locals start as 0
+                        Arrays.fill(r, base + Math.min(argc, params[f]), base + locals[f], 0);
+                        fp = base;
+                        pc = entries[f];
+                        break;
+                    }
+                    case CALLC: {
+                        int c = code[pc + 2];
+                        int base = fp + code[pc + 3];
+                        int argc = code[pc + 4];
+                        long[] a = arguments[arities[c] < 0 ? argc : arities[c]];
+                        for (int i = 0; i < a.length; i++) {
+                            a[i] = i < argc ? r[base + i] : 0;
+                        }
+                        r[fp + code[pc + 1]] = call(c, a);
+                        pc += 5;
+                        break;
+                    }
+                    case RET: {
+                        long value = r[fp + code[pc + 1]];
+                        if (depth == 0) {
+                            return value;
+                        }
+                        depth -= 3;
+                        pc = calls[depth];
+                        fp = calls[depth + 1];
+                        r[fp + calls[depth + 2]] = value;
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } finally {
+            executed += count;
+        }
+    }
+
+    private long call(int c, long[] args) {
+        try {
+            return (long) natives[c].invokeExact(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable th) {
+            throw new IllegalStateException(th);
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Back end compiling a unit into the register bytecode of {@link Vm}.
+ * <p>
+ * Parameters and locals live in the first registers of a frame, in the order of {@link Function#locals}; an
+ * expression leaves its value in a register of its own, a variable is used in place. Temporaries are allocated
+ * like a stack above the locals and released when the expression that needed them is done. Comparisons with
+ * a constant that fits an int and additions of one are encoded with an immediate operand.
+ */
+public final class VmBackend {
+    private final Options options;
+    private Unit unit;
+    private TokenBuffer tokens;
+
+    private int[] code = new int[1024];
+    private int size;
+    private final List<Long> constants = new ArrayList<>();
+    private final Map<Long, Integer> constantIndex = new HashMap<>();
+    // literal text -> index of the constant holding its address
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<String, Integer> functions = new HashMap<>();
+    private final List<Long> globals = new ArrayList<>();
+    private final Map<String, Integer> globalIndex = new HashMap<>();
+    private final Map<String, Integer> natives = new HashMap<>();
+    private final List<MethodHandle> handles = new ArrayList<>();
+    private final List<Integer> arities = new ArrayList<>();
+    private int maxArguments;
+
+    // labels: offset once placed, the operands referring to them
+    private int[] labels = new int[64];
+    private int labelCount;
+    private final List<int[]> fixups = new ArrayList<>();
+
+    // first free register and the most used by the function
+    private int next;
+    private int max;
+
+    private int[] continueLabels = new int[16];
+    private int[] breakLabels = new int[16];
+    private int loopLevel = -1;
+
+    public VmBackend(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * @return the interpreter loaded with the unit; its string literals are placed in {@link Memory}
+     */
+    public Vm generate(Unit unit) {
+        this.unit = unit;
+        this.tokens = unit.tokens;
+        int count = unit.functions.size();
+        int[] entries = new int[count];
+        int[] params = new int[count];
+        int[] locals = new int[count];
+        int[] frames = new int[count];
+        for (int i = 0; i < count; i++) {
+            Function function = unit.functions.get(i);
+            functions.put(unit.name(function.symbol), i);
+            for (Symbol global : function.globals) {
+                globalIndex.put(unit.name(global), globals.size());
+                globals.add(0L);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Function function = unit.functions.get(i);
+            entries[i] = size;
+            params[i] = function.params;
+            locals[i] = function.locals.size();
+            next = locals[i];
+            max = next;
+            statementList(function.body);
+            int zero = temp();
+            constant(zero, 0);
+            emit(Vm.RET, zero);
+            frames[i] = max;
+        }
+        for (int[] fixup : fixups) {
+            code[fixup[0]] = labels[fixup[1]];
+        }
+        long[] g = new long[globals.size()];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = globals.get(i);
+        }
+        long[] k = new long[constants.size()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = constants.get(i);
+        }
+        int[] a = new int[arities.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = arities.get(i);
+            maxArguments = Math.max(maxArguments, a[i]);
+        }
+        if (options.stats) {
+            options.statsOut.println("bytecode: " + size);
+        }
+        return new Vm(Arrays.copyOf(code, size), k, g, entries, params, locals, frames,
+                handles.toArray(new MethodHandle[0]), a, maxArguments);
+    }
+
+    /**
+     * Runs {@code main} of the unit with the arguments in {@code argv}, the program name first.
+     *
+     * @return the exit status
+     */
+    public int run(Unit unit, String[] argv) {
+        Vm vm = generate(unit);
+        Integer main = functions.get("main");
+        if (main == null) {
+            throw new IllegalArgumentException("нет функции main");
+        }
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = (int) vm.execute(main, argv.length, Memory.argv(argv), 0);
+        } catch (Libc.Exit e) {
+            status = e.status;
+        } finally {
+            Libc.flushAll();
+        }
+        long time = System.nanoTime() - start;
+        if (options.stats) {
+            options.statsOut.println("instructions: " + vm.executed());
+            options.statsOut.println("instructions/sec: " + (time > 0 ? vm.executed() * 1_000_000_000L / time : 0));
+        }
+        return status;
+    }
+
+    // ---- statements
+
+    private void statementList(List<Stmt> statements) {
+        for (Stmt s : statements) {
+            statement(s);
+        }
+    }
+
+    private void statement(Stmt s) {
+        int mark = next;
+        switch (s.kind) {
+            case Stmt.ASM:
+                throw new IllegalArgumentException("asm-блок нельзя выполнить в VM");
+            case Stmt.IF: {
+                int end = newLabel();
+                int branches = s.conditions.size();
+                for (int i = 0; i < branches; i++) {
+                    int skip = newLabel();
+                    branch(s.conditions.get(i), false, skip);
+                    statementList(s.branches.get(i));
+                    if (i + 1 < branches || s.otherwise != null) {
+                        jump(end);
+                    }
+                    mark(skip);
+                }
+                if (s.otherwise != null) {
+                    statementList(s.otherwise);
+                }
+                mark(end);
+                break;
+            }
+            case Stmt.WHILE: {
+                int top = newLabel();
+                int end = newLabel();
+                if (s.guard != null) {
+                    branch(s.guard, false, end);
+                }
+                if (s.setup != null) {
+                    statementList(s.setup);
+                }
+                enterLoop(s.guard != null ? newLabel() : top, end);
+                mark(top);
+                if (s.guard != null) {
+                    statementList(s.body);
+                    mark(continueLabels[loopLevel]);
+                    branch(s.expr, true, top);
+                } else {
+                    branch(s.expr, false, end);
+                    statementList(s.body);
+                    jump(top);
+                }
+                mark(end);
+                loopLevel--;
+                break;
+            }
+            case Stmt.BREAK:
+                jump(breakLabels[loopLevel]);
+                break;
+            case Stmt.CONTINUE:
+                jump(continueLabels[loopLevel]);
+                break;
+            case Stmt.RETURN: {
+                int r;
+                if (s.expr != null) {
+                    r = value(s.expr);
+                } else {
+                    r = temp();
+                    constant(r, 0);
+                }
+                emit(Vm.RET, r);
+                break;
+            }
+            case Stmt.EXPR:
+                effect(s.expr);
+                break;
+            default:
+                throw new IllegalArgumentException("statement " + s.kind);
+        }
+        next = mark;
+    }
+
+    private void enterLoop(int continueLabel, int breakLabel) {
+        loopLevel++;
+        if (loopLevel == breakLabels.length) {
+            continueLabels = Arrays.copyOf(continueLabels, loopLevel * 2);
+            breakLabels = Arrays.copyOf(breakLabels, loopLevel * 2);
+        }
+        continueLabels[loopLevel] = continueLabel;
+        breakLabels[loopLevel] = breakLabel;
+    }
+
+    /**
+     * Evaluates an expression whose value is not used.
+     */
+    private void effect(Expr e) {
+        switch (e.kind) {
+            case Expr.ASSIGN:
+                if (e.symbol.kind == Symbol.LOCAL) {
+                    into(e.rhs, e.symbol.index);
+                } else {
+                    emit(Vm.GSTORE, global(e.symbol), value(e.rhs));
+                }
+                break;
+            case Expr.STORE:
+            case Expr.BYTE_STORE:
+                store(e);
+                break;
+            case Expr.CALL:
+                call(e, temp());
+                break;
+            default:
+                value(e);
+                break;
+        }
+    }
+
+    /**
+     * Jumps to {@code target} if {@code e} is non-zero ({@code when}) or zero.
+     */
+    private void branch(Expr e, boolean when, int target) {
+        int mark = next;
+        if (e.isConstant()) {
+            if ((e.number != 0) == when) {
+                jump(target);
+            }
+        } else if (e.kind == Expr.NOT) {
+            branch(e.left, !when, target);
+        } else if (e.isComparison()) {
+            int kind = when ? e.kind : Expr.inverse(e.kind);
+            if (isImmediate(e.right)) {
+                emit(Vm.JLTI + comparison(kind), value(e.left), (int) e.right.number);
+            } else {
+                int a = operand(e.left, e.right);
+                emit(Vm.JLT + comparison(kind), a, value(e.right));
+            }
+            label(target);
+        } else {
+            emit(when ? Vm.JNZ : Vm.JZ, value(e));
+            label(target);
+        }
+        next = mark;
+    }
+
+    private static boolean isImmediate(Expr e) {
+        return e.isConstant() && e.number == (int) e.number;
+    }
+
+    /**
+     * @return the offset of the comparison from {@link Vm#LT} among the comparisons and the jumps
+     */
+    private static int comparison(int kind) {
+        return kind - Expr.LT;
+    }
+
+    // ---- expressions
+
+    /**
+     * @return the register holding the value of {@code e}: its own one for a local, a new temporary otherwise
+     */
+    private int value(Expr e) {
+        if (e.kind == Expr.LOCAL) {
+            return e.symbol.index;
+        }
+        int r = temp();
+        into(e, r);
+        return r;
+    }
+
+    /**
+     * @return the register holding the value of {@code e}, copied out of the local if the expressions evaluated
+     * after it could assign it
+     */
+    private int operand(Expr e, Expr... later) {
+        if (e.kind == Expr.LOCAL) {
+            for (Expr l : later) {
+                if (l.hasSideEffects()) {
+                    int r = temp();
+                    emit(Vm.MOV, r, e.symbol.index);
+                    return r;
+                }
+            }
+        }
+        return value(e);
+    }
+
+    /**
+     * Evaluates {@code e} into register {@code d}, which is written last.
+     */
+    private void into(Expr e, int d) {
+        int mark = next;
+        switch (e.kind) {
+            case Expr.NUMBER:
+                constant(d, e.big != null ? e.big.longValue() : e.number);
+                break;
+            case Expr.CHAR:
+                constant(d, character(e));
+                break;
+            case Expr.STRING:
+                emit(Vm.CONST, d, string(e));
+                break;
+            case Expr.LOCAL:
+                if (e.symbol.index != d) {
+                    emit(Vm.MOV, d, e.symbol.index);
+                }
+                break;
+            case Expr.GLOBAL:
+                emit(Vm.GLOAD, d, global(e.symbol));
+                break;
+            case Expr.ASSIGN:
+                if (e.symbol.kind == Symbol.LOCAL) {
+                    into(e.rhs, e.symbol.index);
+                    if (e.symbol.index != d) {
+                        emit(Vm.MOV, d, e.symbol.index);
+                    }
+                } else {
+                    into(e.rhs, d);
+                    emit(Vm.GSTORE, global(e.symbol), d);
+                }
+                break;
+            case Expr.CALL:
+                call(e, d);
+                break;
+            case Expr.NOT:
+                emit(Vm.NOT, d, value(e.left));
+                break;
+            case Expr.NEG:
+                emit(Vm.NEG, d, value(e.left));
+                break;
+            case Expr.ADD:
+            case Expr.SUB:
+                if (isImmediate(e.right) && e.right.number != Integer.MIN_VALUE) {
+                    int c = (int) e.right.number;
+                    emit(Vm.ADDI, d, value(e.left), e.kind == Expr.ADD ? c : -c);
+                    break;
+                }
+                binary(e.kind == Expr.ADD ? Vm.ADD : Vm.SUB, e, d);
+                break;
+            case Expr.MUL:
+                binary(Vm.MUL, e, d);
+                break;
+            case Expr.DIV:
+                binary(Vm.DIV, e, d);
+                break;
+            case Expr.MOD:
+                binary(Vm.MOD, e, d);
+                break;
+            case Expr.AND:
+                binary(Vm.AND, e, d);
+                break;
+            case Expr.OR:
+                binary(Vm.OR, e, d);
+                break;
+            case Expr.LT:
+            case Expr.GT:
+            case Expr.LE:
+            case Expr.GE:
+            case Expr.EQ:
+            case Expr.NE:
+                binary(Vm.LT + comparison(e.kind), e, d);
+                break;
+            case Expr.INDEX:
+                binary(Vm.LOAD, e, d);
+                break;
+            case Expr.BYTE_INDEX:
+                binary(Vm.LOADB, e, d);
+                break;
+            case Expr.STORE:
+            case Expr.BYTE_STORE: {
+                int s = store(e);
+                if (s != d) {
+                    emit(Vm.MOV, d, s);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("expression " + e.kind);
+        }
+        next = mark;
+    }
+
+    private void binary(int opcode, Expr e, int d) {
+        int a = operand(e.left, e.right);
+        emit(opcode, d, a, value(e.right));
+    }
+
+    /**
+     * @return the register holding the stored value
+     */
+    private int store(Expr e) {
+        int base = operand(e.left, e.right, e.rhs);
+        int index = operand(e.right, e.rhs);
+        int s = value(e.rhs);
+        emit(e.kind == Expr.STORE ? Vm.STORE : Vm.STOREB, base, index, s);
+        return s;
+    }
+
+    /**
+     * Evaluates the arguments into consecutive registers above everything in use and calls the function with
+     * them, its result going to {@code d}.
+     */
+    private void call(Expr e, int d) {
+        String name = unit.name(e.symbol);
+        int argc = e.args.length;
+        int base = next;
+        next += argc;
+        max = Math.max(max, next);
+        for (int i = 0; i < argc; i++) {
+            into(e.args[i], base + i);
+        }
+        Integer f = functions.get(name);
+        if (f != null) {
+            emit(Vm.CALL, d, f, base, argc);
+        } else {
+            emit(Vm.CALLC, d, libc(name), base, argc);
+            maxArguments = Math.max(maxArguments, argc);
+        }
+        next = base;
+    }
+
+    /**
+     * @return the index of the C function {@code name}, which takes its arguments as a {@code long[]}
+     */
+    private int libc(String name) {
+        Integer index = natives.get(name);
+        if (index != null) {
+            return index;
+        }
+        Method m = Libc.function(name);
+        if (m == null) {
+            throw new IllegalArgumentException("неизвестная функция " + name);
+        }
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflect(m);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        int arity = m.getParameterCount();
+        if (m.isVarArgs()) {
+            handle = handle.asFixedArity();
+            arity = -1;
+        } else {
+            handle = handle.asSpreader(long[].class, arity);
+        }
+        index = handles.size();
+        natives.put(name, index);
+        handles.add(handle);
+        arities.add(arity);
+        return index;
+    }
+
+    private int global(Symbol symbol) {
+        String name = unit.name(symbol);
+        Integer index = globalIndex.get(name);
+        if (index == null) {
+            Field f = Libc.variable(name);
+            if (f == null) {
+                throw new IllegalArgumentException("неизвестная переменная " + name);
+            }
+            index = globals.size();
+            globalIndex.put(name, index);
+            try {
+                globals.add(f.getLong(null));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return index;
+    }
+
+    private void constant(int d, long value) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        emit(Vm.CONST, d, index);
+    }
+
+    /**
+     * @return the index of the constant with the address of a string literal, the same for equal literals
+     */
+    private int string(Expr e) {
+        String text = new String(tokens.source, tokens.start[e.token], tokens.length[e.token]);
+        Integer index = strings.get(text);
+        if (index == null) {
+            index = constants.size();
+            constants.add(Memory.literal(new String(Lexer.stringValue(text), StandardCharsets.ISO_8859_1)));
+            strings.put(text, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return the value of a character literal, for one the lexer left unknown as the assembler reads it
+     */
+    private long character(Expr e) {
+        if (e.number >= 0) {
+            return e.number;
+        }
+        String text = new String(tokens.source, tokens.start[e.token] + 1, tokens.length[e.token] - 2);
+        return Lexer.stringValue('"' + text + '"')[0] & 0xFF;
+    }
+
+    private int temp() {
+        int r = next++;
+        max = Math.max(max, next);
+        return r;
+    }
+
+    // ---- code
+
+    private void emit(int... words) {
+        if (size + words.length > code.length) {
+            code = Arrays.copyOf(code, 2 * code.length + words.length);
+        }
+        System.arraycopy(words, 0, code, size, words.length);
+        size += words.length;
+    }
+
+    private int newLabel() {
+        if (labelCount == labels.length) {
+            labels = Arrays.copyOf(labels, labelCount * 2);
+        }
+        return labelCount++;
+    }
+
+    private void mark(int label) {
+        labels[label] = size;
+    }
+
+    /**
+     * Appends the target of the jump just emitted.
+     */
+    private void label(int label) {
+        fixups.add(new int[]{size, label});
+        emit(-1);
+    }
+
+    private void jump(int label) {
+        emit(Vm.JMP);
+        label(label);
+    }
+}
@@ -0,0 +1,1831 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.SymbolTable.Symbol;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.remdev.lang.trasanka.AsmEmitter.BYTE;
+import static org.remdev.lang.trasanka.AsmEmitter.QWORD;
+
+/**
+ * Lowers the IR to x86-64 assembly (Intel syntax).
+ * <p>
+ * Expression temporaries live in a small rotating cache of registers that behaves like a stack:
+ * {@link #push()} makes room for a new value in {@code regname(0)}, {@link #pop()} drops it,
+ * spilling to the machine stack once the cache is full.
+ * <p>
+ * Functions are generated independently, each by a backend of its own into a list of instructions with labels
+ * numbered from 0, in parallel on the pool the caller passes. The lists are then appended to the output in source
+ * order, their labels renumbered and string literals merged as if the functions had been generated one after
+ * another, so the output does not depend on the number of threads.
+ */
+public class X86Backend {
+    private static final String[] call_regs = {"rdi", "rsi", "rdx", "rcx", "r8", "r9"};
+    private static final String[] legacy_regs = {"r8", "r9", "r11", "rax"};
+    // every caller-saved register is free between calls; rax comes last since that is where a call leaves its result
+    private static final String[] scratch_regs = {"r8", "r9", "r11", "r10", "rdx", "rsi", "rdi", "rcx", "rax"};
+    // homes of promoted locals, preserved across calls
+    private static final String[] callee_saved = {"rbx", "r12", "r13", "r14", "r15"};
+
+    // an elif chain needs this many distinct constants to be dispatched by a table or a binary search
+    private static final int MIN_CASES = 4;
+    // a table may have this many entries per constant at most, and this many entries in all
+    private static final int TABLE_DENSITY = 4;
+    private static final int TABLE_LIMIT = 1024;
+    // a binary search compares against this few constants one by one
+    private static final int LINEAR_CASES = 3;
+
+    private final String[] regs;
+    private final int cacheSize;
+
+    private final AsmEmitter sink;
+    private final Options options;
+    // where the code goes: the sink itself, or the list the peephole pass works on
+    private AsmEmitter out;
+    private InsnList insns;
+    private Peephole peephole;
+    private Unit unit;
+    private TokenBuffer tokens;
+    // the function being generated, whether it has asm blocks, and the label of its body for self tail calls
+    private Function current;
+    private boolean asm;
+    private int l_body = -1;
+
+    private final int[] cache;
+    // values pushed to the machine stack because the cache was full, in the current function
+    private int spills;
+    // elif chains lowered to a jump table or a binary search, in the current function
+    private int tables;
+    private int searches;
+
+    // register of each local of the current function, null if it lives on the stack
+    private String[] home;
+    // registers the current function saves, and the offset below rbp where the first one is saved
+    private int saved;
+    private int saveArea;
+
+    private int stackSize;
+    private int label = 0;
+    // string literals and jump tables, written as one .rodata section after the code
+    private final InsnList constants = new InsnList();
+    // label of each string literal by its text
+    private final Map<String, Integer> strings = new HashMap<>();
+    // text of the string literals by their labels, when equal ones are merged
+    private final Map<Integer, String> literals = new HashMap<>();
+    // per enclosing loop: where continue and break jump to; a continue label of -1 is allocated on first use
+    private int[] continue_labels = new int[16];
+    private int[] break_labels = new int[16];
+    private int while_level = -1;
+
+    public X86Backend(AsmEmitter out, Options options) {
+        this.sink = out;
+        this.out = out;
+        this.options = options;
+        regs = options.sethiUllman ? scratch_regs : legacy_regs;
+        cacheSize = regs.length;
+        cache = new int[cacheSize];
+        if (options.peephole || options.omitFramePointer) {
+            insns = new InsnList();
+            this.out = insns;
+        }
+        if (options.peephole) {
+            peephole = new Peephole(options.disabledRules);
+        }
+    }
+
+    /**
+     * Writes the code of {@code unit}; the functions are generated on {@code pool}, one after another on the
+     * calling thread if it is null.
+     */
+    public void generate(Unit unit, ForkJoinPool pool) {
+        sink.op(".intel_syntax").sym("noprefix").end();
+        sink.op(".text").end();
+
+        int count = unit.functions.size();
+        Part[] parts = new Part[count];
+        for (int i = 0; i < count; i++) {
+            parts[i] = new Part(unit, unit.functions.get(i), options);
+        }
+        if (pool != null && count > 1) {
+            for (Part part : parts) {
+                pool.execute(part);
+            }
+            for (Part part : parts) {
+                part.join();
+            }
+        } else {
+            for (Part part : parts) {
+                part.invoke();
+            }
+        }
+
+        for (Part part : parts) {
+            link(part);
+            if (options.stats) {
+                String name = unit.name(part.function.symbol);
+                options.statsOut.println("spills " + name + ": " + part.backend.spills);
+                options.statsOut.println("tables " + name + ": " + part.backend.tables);
+                options.statsOut.println("searches " + name + ": " + part.backend.searches);
+            }
+            if (peephole != null) {
+                peephole.add(part.backend.peephole);
+            }
+        }
+        if (!constants.insns.isEmpty()) {
+            sink.op(".section").sym(".rodata").end();
+            constants.replay(sink);
+        }
+        if (options.stats && options.mergeConstants) {
+            options.statsOut.println("strings: " + strings.size());
+        }
+        if (options.stats && peephole != null) {
+            peephole.report(options.statsOut);
+        }
+    }
+
+    /**
+     * Generates one function and the globals declared before it.
+     */
+    private void part(Function function) {
+        for (Symbol global : function.globals) {
+            out.op(".comm").sym(unit.name(global)).imm(8).imm(8).end();
+        }
+        function(function);
+        flushFunction();
+    }
+
+    /**
+     * Appends a generated function to the output and its constants to the pool. Its labels get the numbers that
+     * follow the ones given out so far; a string literal already in the pool is referred to by the label it has
+     * there, and its copy is dropped.
+     */
+    private void link(Part part) {
+        X86Backend backend = part.backend;
+        int[] numbers = new int[backend.label];
+        boolean[] merged = new boolean[backend.label];
+        for (int n = 0; n < backend.label; n++) {
+            String text = backend.literals.get(n);
+            Integer l = text != null ? strings.get(text) : null;
+            if (l != null) {
+                numbers[n] = l;
+                merged[n] = true;
+            } else {
+                numbers[n] = label++;
+                if (text != null) {
+                    strings.put(text, numbers[n]);
+                }
+            }
+        }
+        for (Insn insn : part.code.insns) {
+            renumber(insn, numbers);
+        }
+        part.code.replay(sink);
+        List<Insn> pool = backend.constants.insns;
+        for (int i = 0; i < pool.size(); i++) {
+            Insn insn = pool.get(i);
+            if (insn.kind == Insn.LABEL && insn.number >= 0 && merged[insn.number]) {
+                // the label and its .string
+                i++;
+                continue;
+            }
+            renumber(insn, numbers);
+            constants.insns.add(insn);
+        }
+    }
+
+    private static void renumber(Insn insn, int[] numbers) {
+        if (insn.kind == Insn.LABEL && insn.number >= 0) {
+            insn.number = numbers[insn.number];
+        }
+        for (Insn.Operand o : insn.operands) {
+            if (o.kind == Insn.Operand.TARGET || o.kind == Insn.Operand.OFFSET) {
+                o.value = numbers[(int) o.value];
+            }
+        }
+    }
+
+    private void flushFunction() {
+        if (insns != null) {
+            if (peephole != null) {
+                peephole.run(insns.insns);
+            }
+            if (options.omitFramePointer) {
+                FramePointer.omit(insns.insns);
+            }
+            insns.replay(sink);
+        }
+    }
+
+    private void function(Function function) {
+        current = function;
+        asm = false;
+        boolean selfTail = options.tailCalls && scan(function.body);
+        out.op(".globl").sym(unit.name(function.symbol)).end();
+        out.label(unit.name(function.symbol));
+        out.op("push").reg("rbp").end();
+        out.op("mov").reg("rbp").reg("rsp").end();
+
+        home = options.registerLocals
+                ? RegisterAllocator.allocate(function, callee_saved)
+                : new String[function.locals.size()];
+        saved = 0;
+        for (String register : home) {
+            if (register != null) saved++;
+        }
+        saveArea = function.frame + 8;
+        int frame = function.frame + saved * 8;
+
+        if (frame > 0) out.op("sub").reg("rsp").imm(frame).end();
+        for (int i = 0; i < saved; i++) {
+            out.op("mov").mem(QWORD, "rbp", -(saveArea + i * 8)).reg(callee_saved[i]).end();
+        }
+        for (int i = 0; i < function.params; i++) {
+            if (home[i] != null) {
+                out.op("mov").reg(home[i]).reg(call_regs[i]).end();
+            } else {
+                out.op("mov").mem(QWORD, "rbp", -(i * 8 + 8)).reg(call_regs[i]).end();
+            }
+        }
+
+        l_body = -1;
+        if (selfTail && !asm) {
+            l_body = label++;
+            out.label(".L", l_body);
+        }
+        initCache();
+        statementList(function.body);
+        epilogue();
+    }
+
+    /**
+     * Notes asm blocks of the current function.
+     *
+     * @return true if the function has a return of a call to itself
+     */
+    private boolean scan(List<Stmt> statements) {
+        boolean self = false;
+        for (Stmt s : statements) {
+            switch (s.kind) {
+                case Stmt.ASM:
+                    asm = true;
+                    break;
+                case Stmt.IF:
+                    for (List<Stmt> branch : s.branches) {
+                        self |= scan(branch);
+                    }
+                    if (s.otherwise != null) {
+                        self |= scan(s.otherwise);
+                    }
+                    break;
+                case Stmt.WHILE:
+                    self |= scan(s.body);
+                    break;
+                case Stmt.RETURN:
+                    self |= s.expr != null && s.expr.kind == Expr.CALL && isSelfCall(s.expr);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return self;
+    }
+
+    private boolean isSelfCall(Expr call) {
+        return call.symbol == current.symbol && call.args.length == current.params;
+    }
+
+    private void epilogue() {
+        restoreSaved();
+        out.op("leave").end();
+        out.op("ret").end();
+    }
+
+    private void restoreSaved() {
+        for (int i = 0; i < saved; i++) {
+            out.op("mov").reg(callee_saved[i]).mem(QWORD, "rbp", -(saveArea + i * 8)).end();
+        }
+    }
+
+    private void statementList(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement(statement);
+        }
+    }
+
+    private String regname(int i) {
+        return regs[cache[i]];
+    }
+
+    private void statement(Stmt s) {
+        switch (s.kind) {
+            case Stmt.ASM:
+                for (int t = s.firstToken; t < s.firstToken + s.tokenCount; t++) {
+                    out.line(tokens.source, tokens.start[t], tokens.length[t]);
+                }
+                break;
+            case Stmt.IF: {
+                if (options.jumpTables && select(s)) {
+                    break;
+                }
+                int l_end;
+                int l_next;
+                if (options.fuseBranches) {
+                    l_end = label++;
+                    l_next = label++;
+                    branch(s.conditions.get(0), false, l_next);
+                } else {
+                    expression(s.conditions.get(0));
+                    l_end = label++;
+                    l_next = label++;
+                    out.op("test").reg(regname(0)).reg(regname(0)).end();
+                    out.op("jz").target(".L", l_next).end();
+                }
+                boolean more = s.conditions.size() > 1 || s.otherwise != null;
+                initCache();
+                statementList(s.branches.get(0));
+                if (more) {
+                    out.op("jmp").target(".L", l_end).end();
+                }
+                out.label(".L", l_next);
+                elif(s, 1, l_end);
+                if (more) {
+                    out.label(".L", l_end);
+                }
+                break;
+            }
+            case Stmt.WHILE: {
+                int l_top = label++;
+                int l_end = label++;
+                if (s.guard != null) {
+                    branch(s.guard, false, l_end);
+                }
+                if (s.setup != null) {
+                    initCache();
+                    statementList(s.setup);
+                }
+                enterLoop(s.guard != null ? -1 : l_top, l_end);
+                out.label(".L", l_top);
+                if (s.guard != null) {
+                    initCache();
+                    statementList(s.body);
+                    if (continue_labels[while_level] >= 0) {
+                        out.label(".L", continue_labels[while_level]);
+                    }
+                    branch(s.expr, true, l_top);
+                } else {
+                    branch(s.expr, false, l_end);
+                    initCache();
+                    statementList(s.body);
+                    out.op("jmp").target(".L", l_top).end();
+                }
+                out.label(".L", l_end);
+                while_level--;
+                break;
+            }
+            case Stmt.BREAK:
+                out.op("jmp").target(".L", break_labels[while_level]).end();
+                break;
+            case Stmt.CONTINUE:
+                if (continue_labels[while_level] < 0) {
+                    continue_labels[while_level] = label++;
+                }
+                out.op("jmp").target(".L", continue_labels[while_level]).end();
+                break;
+            case Stmt.RETURN:
+                if (s.expr != null && s.expr.kind == Expr.CALL && tailCall(s.expr)) {
+                    break;
+                }
+                if (s.expr != null) {
+                    expression(s.expr);
+                    if (!regname(0).equals("rax")) {
+                        out.op("mov").reg("rax").reg(regname(0)).end();
+                    }
+                    pop();
+                }
+                epilogue();
+                break;
+            case Stmt.EXPR:
+                if (options.isel) {
+                    effect(s.expr);
+                } else {
+                    expression(s.expr);
+                    pop();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("statement " + s.kind);
+        }
+    }
+
+    /**
+     * Emits the branches of an if from {@code first} on, testing their conditions one after the other, and the
+     * else branch.
+     */
+    private void elif(Stmt s, int first, int l_end) {
+        int branches = s.conditions.size();
+        for (int i = first; i < branches; i++) {
+            int l_next;
+            if (options.fuseBranches) {
+                l_next = label++;
+                branch(s.conditions.get(i), false, l_next);
+            } else {
+                expression(s.conditions.get(i));
+                l_next = label++;
+                out.op("test").reg(regname(0)).reg(regname(0)).end();
+                out.op("jz").target(".L", l_next).end();
+            }
+            initCache();
+            statementList(s.branches.get(i));
+            if (i + 1 < branches || s.otherwise != null) {
+                out.op("jmp").target(".L", l_end).end();
+            }
+            out.label(".L", l_next);
+        }
+        if (s.otherwise != null) {
+            initCache();
+            statementList(s.otherwise);
+        }
+    }
+
+    /**
+     * Lowers an if whose leading conditions compare one variable with constants, like {@code v == 'a'} or
+     * {@code v == 1 | v == 2}, by loading the variable once and jumping to the branch of its value through a
+     * table of labels if the constants are dense, through a binary search otherwise. The remaining conditions are
+     * tested one by one when the value matches none of the constants.
+     *
+     * @return false if the if does not start with enough such conditions
+     */
+    private boolean select(Stmt s) {
+        Expr v = subject(s.conditions.get(0));
+        if (v == null) {
+            return false;
+        }
+        // constant -> branch, the first condition a constant appears in takes it
+        TreeMap<Long, Integer> cases = new TreeMap<>();
+        int count = 0;
+        List<Long> values = new ArrayList<>();
+        while (count < s.conditions.size()) {
+            values.clear();
+            if (!constants(s.conditions.get(count), v, values)) {
+                break;
+            }
+            for (Long value : values) {
+                if (!cases.containsKey(value)) {
+                    cases.put(value, count);
+                }
+            }
+            count++;
+        }
+        if (cases.size() < MIN_CASES) {
+            return false;
+        }
+
+        int l_end = label++;
+        int[] l_case = new int[count];
+        for (int i = 0; i < count; i++) {
+            l_case[i] = label++;
+        }
+        boolean rest = count < s.conditions.size() || s.otherwise != null;
+        int l_default = rest ? label++ : l_end;
+
+        long min = cases.firstKey();
+        long range = cases.lastKey() - min + 1;
+        expression(v);
+        String r = regname(0);
+        if (range <= TABLE_DENSITY * cases.size() && range <= TABLE_LIMIT) {
+            if (min != 0) {
+                out.op("sub").reg(r).imm(min).end();
+            }
+            // below min wraps around to a large unsigned number
+            out.op("cmp").reg(r).imm(range - 1).end();
+            out.op("ja").target(".L", l_default).end();
+            push();
+            int table = label++;
+            out.op("mov").reg(regname(0)).offset(".LT", table).end();
+            out.op("jmp").mem(QWORD, regname(0), r, 8).end();
+            pop();
+            AsmEmitter data = rodata();
+            data.op(".align").imm(8).end();
+            data.label(".LT", table);
+            for (long value = min; value < min + range; value++) {
+                Integer i = cases.get(value);
+                data.op(".quad").target(".L", i != null ? l_case[i] : l_default).end();
+            }
+            text();
+            tables++;
+        } else {
+            Long[] keys = cases.keySet().toArray(new Long[0]);
+            int[] targets = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                targets[i] = l_case[cases.get(keys[i])];
+            }
+            search(r, keys, targets, 0, keys.length, l_default);
+            searches++;
+        }
+        pop();
+
+        for (int i = 0; i < count; i++) {
+            out.label(".L", l_case[i]);
+            initCache();
+            statementList(s.branches.get(i));
+            if (i + 1 < count || rest) {
+                out.op("jmp").target(".L", l_end).end();
+            }
+        }
+        if (rest) {
+            out.label(".L", l_default);
+            elif(s, count, l_end);
+        }
+        out.label(".L", l_end);
+        return true;
+    }
+
+    /**
+     * @return the variable {@code e} compares with a constant, null if it is no such comparison
+     */
+    private static Expr subject(Expr e) {
+        if (e.kind == Expr.OR) {
+            return subject(e.left);
+        }
+        if (e.kind != Expr.EQ) {
+            return null;
+        }
+        Expr v = e.left.isConstant() ? e.right : e.left;
+        return v.kind == Expr.LOCAL || v.kind == Expr.GLOBAL ? v : null;
+    }
+
+    /**
+     * Adds the constants {@code e} compares {@code v} with to {@code values}.
+     *
+     * @return false unless {@code e} is a comparison of {@code v} with a constant, or an {@code |} of such
+     */
+    private static boolean constants(Expr e, Expr v, List<Long> values) {
+        if (e.kind == Expr.OR) {
+            return constants(e.left, v, values) && constants(e.right, v, values);
+        }
+        if (e.kind != Expr.EQ) {
+            return false;
+        }
+        Expr c = e.left.isConstant() ? e.left : e.right;
+        Expr x = c == e.left ? e.right : e.left;
+        if (!c.isConstant() || c.number != (int) c.number || x.kind != v.kind || x.symbol != v.symbol) {
+            return false;
+        }
+        values.add(c.number);
+        return true;
+    }
+
+    /**
+     * Jumps to {@code targets[i]} if {@code r} holds {@code keys[i]}, for i from {@code lo} up to {@code hi}, to
+     * {@code l_default} if it holds none of them.
+     */
+    private void search(String r, Long[] keys, int[] targets, int lo, int hi, int l_default) {
+        if (hi - lo <= LINEAR_CASES) {
+            for (int i = lo; i < hi; i++) {
+                out.op("cmp").reg(r).imm(keys[i]).end();
+                out.op("je").target(".L", targets[i]).end();
+            }
+            out.op("jmp").target(".L", l_default).end();
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int l_right = label++;
+        out.op("cmp").reg(r).imm(keys[mid]).end();
+        out.op("je").target(".L", targets[mid]).end();
+        out.op("jg").target(".L", l_right).end();
+        search(r, keys, targets, lo, mid, l_default);
+        out.label(".L", l_right);
+        search(r, keys, targets, mid + 1, hi, l_default);
+    }
+
+    /**
+     * Jumps to {@code .L<target>} if {@code e} is non-zero ({@code when} is true) or zero ({@code when} is false),
+     * falls through otherwise.
+     * <p>
+     * With {@link Options#fuseBranches} comparisons are turned into {@code cmp} + {@code jcc} and {@code &}/{@code |}
+     * of boolean operands are short-circuited, provided skipping the right operand cannot skip a side effect.
+     */
+    private void branch(Expr e, boolean when, int target) {
+        if (options.fuseBranches) {
+            if (e.isConstant()) {
+                if ((e.number != 0) == when) {
+                    out.op("jmp").target(".L", target).end();
+                }
+                return;
+            }
+            if (e.isComparison()) {
+                int kind = e.kind;
+                if (options.isel) {
+                    kind = compare(e);
+                    pop();
+                } else {
+                    operands(e.left, e.right);
+                    out.op("cmp").reg(regname(1)).reg(regname(0)).end();
+                    pop();
+                    pop();
+                }
+                out.op(jcc(when ? kind : Expr.inverse(kind))).target(".L", target).end();
+                return;
+            }
+            if (e.kind == Expr.NOT) {
+                branch(e.left, !when, target);
+                return;
+            }
+            if ((e.kind == Expr.AND || e.kind == Expr.OR) && isBoolean(e) && !e.right.hasSideEffects()) {
+                // a & b jumps when false as soon as one operand is false, a | b jumps when true likewise
+                if (when == (e.kind == Expr.OR)) {
+                    branch(e.left, when, target);
+                    branch(e.right, when, target);
+                } else {
+                    int skip = label++;
+                    branch(e.left, !when, skip);
+                    branch(e.right, when, target);
+                    out.label(".L", skip);
+                }
+                return;
+            }
+        }
+        expression(e);
+        out.op("test").reg(regname(0)).reg(regname(0)).end();
+        out.op(when ? "jnz" : "jz").target(".L", target).end();
+        pop();
+    }
+
+    /**
+     * @return true if the value of {@code e} is always 0 or 1
+     */
+    private static boolean isBoolean(Expr e) {
+        switch (e.kind) {
+            case Expr.NOT:
+                return true;
+            case Expr.AND:
+            case Expr.OR:
+                return isBoolean(e.left) && isBoolean(e.right);
+            default:
+                return e.isComparison() || e.isConstant(0) || e.isConstant(1);
+        }
+    }
+
+    /**
+     * Evaluates {@code e} into a newly pushed {@code regname(0)}.
+     */
+    private void expression(Expr e) {
+        switch (e.kind) {
+            case Expr.NUMBER:
+            case Expr.CHAR:
+            case Expr.STRING:
+            case Expr.LOCAL:
+            case Expr.GLOBAL:
+                push();
+                load(regname(0), e);
+                break;
+            case Expr.ASSIGN:
+                expression(e.rhs);
+                if (options.isel) {
+                    destination(out.op("mov"), e.symbol).reg(regname(0)).end();
+                } else if (e.symbol.kind != Symbol.LOCAL) {
+                    out.op("mov").sym(unit.name(e.symbol)).reg(regname(0)).end();
+                } else if (home[e.symbol.index] != null) {
+                    out.op("mov").reg(home[e.symbol.index]).reg(regname(0)).end();
+                } else {
+                    out.op("mov").mem(QWORD, "rbp", -e.symbol.offset).reg(regname(0)).end();
+                }
+                break;
+            case Expr.CALL:
+                call(e);
+                break;
+            case Expr.NOT:
+                expression(e.left);
+                out.op("test").reg(regname(0)).reg(regname(0)).end();
+                out.op("setz").reg(flag(0)).end();
+                out.op("movzx").reg(regname(0)).reg(flag(0)).end();
+                break;
+            case Expr.NEG:
+                expression(e.left);
+                out.op("neg").reg(regname(0)).end();
+                break;
+            case Expr.OR:
+            case Expr.AND:
+            case Expr.ADD:
+            case Expr.SUB:
+            case Expr.MUL:
+                if (e.kind == Expr.MUL && options.strengthReduce && multiplyByConstant(e)) {
+                    break;
+                }
+                if (options.isel && selectArithmetic(e)) {
+                    break;
+                }
+                operands(e.left, e.right);
+                out.op(arithmetic(e.kind)).reg(regname(1)).reg(regname(0)).end();
+                pop();
+                break;
+            case Expr.DIV:
+            case Expr.MOD:
+                if (options.strengthReduce && e.right.isConstant() && divideByConstant(e)) {
+                    break;
+                }
+                operands(e.left, e.right);
+                divide(e.kind == Expr.MOD);
+                break;
+            case Expr.LT:
+            case Expr.GT:
+            case Expr.LE:
+            case Expr.GE:
+            case Expr.EQ:
+            case Expr.NE:
+                if (options.isel) {
+                    int kind = compare(e);
+                    out.op(setcc(kind)).reg(flag(0)).end();
+                    out.op("movzx").reg(regname(0)).reg(flag(0)).end();
+                    break;
+                }
+                operands(e.left, e.right);
+                out.op("cmp").reg(regname(1)).reg(regname(0)).end();
+                out.op(setcc(e.kind)).reg(flag(1)).end();
+                out.op("movzx").reg(regname(1)).reg(flag(1)).end();
+                pop();
+                break;
+            case Expr.INDEX:
+            case Expr.BYTE_INDEX:
+            case Expr.STORE:
+            case Expr.BYTE_STORE:
+                if (options.isel) {
+                    access(e, true);
+                    break;
+                }
+                indexing(e);
+                break;
+            default:
+                throw new IllegalArgumentException("expression " + e.kind);
+        }
+    }
+
+    private void indexing(Expr e) {
+        switch (e.kind) {
+            case Expr.INDEX:
+                operands(e.left, e.right);
+                out.op("mov").reg(regname(1)).mem(QWORD, regname(1), regname(0), 8).end();
+                pop();
+                break;
+            case Expr.BYTE_INDEX:
+                operands(e.left, e.right);
+                if (options.sethiUllman) {
+                    out.op("movzx").reg(regname(1)).mem(BYTE, regname(1), regname(0), 1).end();
+                } else {
+                    out.op("mov").reg("cl").mem(BYTE, regname(1), regname(0), 1).end();
+                    out.op("movzx").reg(regname(1)).reg("cl").end();
+                }
+                pop();
+                break;
+            case Expr.STORE:
+            case Expr.BYTE_STORE: {
+                expression(e.left);
+                expression(e.right);
+                expression(e.rhs);
+                if (e.kind == Expr.STORE) {
+                    out.op("mov").mem(QWORD, regname(2), regname(1), 8).reg(regname(0)).end();
+                } else if (options.sethiUllman) {
+                    out.op("mov").mem(BYTE, regname(2), regname(1), 1).reg(low(regname(0))).end();
+                } else {
+                    out.op("mov").reg("rcx").reg(regname(0)).end();
+                    out.op("mov").mem(BYTE, regname(2), regname(1), 1).reg("cl").end();
+                }
+                // the stored value is the result
+                int tmp = cache[2];
+                cache[2] = cache[0];
+                cache[0] = tmp;
+                pop();
+                pop();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("expression " + e.kind);
+        }
+    }
+
+    /**
+     * Evaluates an expression statement whose value is not used. With {@link Options#isel} constants are stored
+     * as immediates and {@code x = x op y} updates the variable in place.
+     */
+    private void effect(Expr e) {
+        if (e.kind == Expr.ASSIGN) {
+            Expr rhs = e.rhs;
+            if (isImmediate(rhs)) {
+                source(destination(out.op("mov"), e.symbol), rhs).end();
+                return;
+            }
+            if ((rhs.kind == Expr.ADD || rhs.kind == Expr.SUB || rhs.kind == Expr.AND || rhs.kind == Expr.OR)
+                    && isVariable(rhs.left, e.symbol)) {
+                Expr y = rhs.right;
+                boolean inRegister = e.symbol.kind == Symbol.LOCAL && home[e.symbol.index] != null;
+                if (isImmediate(y) || inRegister && isDirect(y)) {
+                    source(destination(out.op(arithmetic(rhs.kind)), e.symbol), y).end();
+                    return;
+                }
+                if (Effects.independent(rhs.left, y)) {
+                    expression(y);
+                    destination(out.op(arithmetic(rhs.kind)), e.symbol).reg(regname(0)).end();
+                    pop();
+                    return;
+                }
+            }
+        } else if (e.kind == Expr.STORE || e.kind == Expr.BYTE_STORE) {
+            access(e, false);
+            return;
+        }
+        expression(e);
+        pop();
+    }
+
+    private static boolean isVariable(Expr e, Symbol symbol) {
+        return (e.kind == Expr.LOCAL || e.kind == Expr.GLOBAL) && e.symbol == symbol;
+    }
+
+    /**
+     * @return true for a literal that fits into the 32-bit immediate of an instruction
+     */
+    private static boolean isImmediate(Expr e) {
+        return e.kind == Expr.NUMBER && e.big == null && e.number == (int) e.number || e.kind == Expr.CHAR;
+    }
+
+    /**
+     * @return true if {@code e} can be the source operand of an instruction as it is
+     */
+    private static boolean isDirect(Expr e) {
+        return isImmediate(e) || e.kind == Expr.LOCAL || e.kind == Expr.GLOBAL;
+    }
+
+    /**
+     * Appends {@code e}, which has to be {@link #isDirect direct}, as an operand.
+     */
+    private AsmEmitter source(AsmEmitter insn, Expr e) {
+        switch (e.kind) {
+            case Expr.NUMBER:
+                return insn.imm(e.number);
+            case Expr.CHAR:
+                return e.number >= 0
+                        ? insn.imm(e.number)
+                        : insn.sym(tokens.source, tokens.start[e.token], tokens.length[e.token]);
+            case Expr.LOCAL:
+                return destination(insn, e.symbol);
+            case Expr.GLOBAL:
+                return insn.rip(QWORD, unit.name(e.symbol));
+            default:
+                throw new IllegalArgumentException("operand " + e.kind);
+        }
+    }
+
+    /**
+     * Appends the location of a variable as an operand.
+     */
+    private AsmEmitter destination(AsmEmitter insn, Symbol symbol) {
+        if (symbol.kind != Symbol.LOCAL) {
+            return insn.rip(QWORD, unit.name(symbol));
+        }
+        if (home[symbol.index] != null) {
+            return insn.reg(home[symbol.index]);
+        }
+        return insn.mem(QWORD, "rbp", -symbol.offset);
+    }
+
+    /**
+     * Arithmetic with an immediate or memory operand, and {@code lea} for {@code x + y * scale + disp}.
+     *
+     * @return false if the generic register-register form is needed
+     */
+    private boolean selectArithmetic(Expr e) {
+        if (e.kind == Expr.ADD || e.kind == Expr.SUB) {
+            long disp = 0;
+            Expr sum = e;
+            if (e.right.isConstant() && isImmediate(e.right)) {
+                disp = e.kind == Expr.ADD ? e.right.number : -e.right.number;
+                sum = e.left;
+            }
+            if (sum.kind == Expr.ADD && (disp != 0 || scale(sum.left) > 1 || scale(sum.right) > 1)) {
+                Expr x = sum.left;
+                Expr y = sum.right;
+                int scale = scale(y);
+                boolean scaledLeft = scale == 1 && scale(x) > 1;
+                if (scaledLeft) {
+                    scale = scale(x);
+                    x = x.left;
+                } else if (scale > 1) {
+                    y = y.left;
+                }
+                operands(x, y);
+                String base = scaledLeft ? regname(0) : regname(1);
+                String index = scaledLeft ? regname(1) : regname(0);
+                out.op("lea").reg(regname(1)).mem(QWORD, base, index, scale, disp).end();
+                pop();
+                return true;
+            }
+        }
+        if (isDirect(e.right)) {
+            expression(e.left);
+            arithmetic(e.kind, regname(0), e.right);
+            return true;
+        }
+        if (e.kind != Expr.SUB && isDirect(e.left) && Effects.independent(e.left, e.right)) {
+            expression(e.right);
+            arithmetic(e.kind, regname(0), e.left);
+            return true;
+        }
+        return false;
+    }
+
+    private void arithmetic(int kind, String reg, Expr operand) {
+        if (kind == Expr.MUL && isImmediate(operand)) {
+            source(out.op("imul").reg(reg).reg(reg), operand).end();
+        } else {
+            source(out.op(arithmetic(kind)).reg(reg), operand).end();
+        }
+    }
+
+    /**
+     * @return the scale of {@code y * 2/4/8}, 1 for anything else
+     */
+    private static int scale(Expr e) {
+        if (e.kind == Expr.MUL && e.right.isConstant()) {
+            long c = e.right.number;
+            if (c == 2 || c == 4 || c == 8) {
+                return (int) c;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Compares the operands of a comparison, using an immediate or memory operand and the register of a local
+     * where it can, and leaves one entry in the cache (its value is meaningless, only the flags are).
+     *
+     * @return the comparison to test the flags for, with the operands possibly swapped
+     */
+    private int compare(Expr e) {
+        Expr left = e.left;
+        Expr right = e.right;
+        int kind = e.kind;
+        if (!isDirect(right) && isDirect(left) && Effects.independent(left, right)) {
+            left = e.right;
+            right = e.left;
+            kind = Expr.swapped(kind);
+        }
+        if (isDirect(right)) {
+            String reg = register(left);
+            if (reg != null) {
+                push();
+            } else {
+                expression(left);
+                reg = regname(0);
+            }
+            if (right.isConstant(0)) {
+                out.op("test").reg(reg).reg(reg).end();
+            } else {
+                source(out.op("cmp").reg(reg), right).end();
+            }
+        } else {
+            operands(left, right);
+            out.op("cmp").reg(regname(1)).reg(regname(0)).end();
+            pop();
+        }
+        return kind;
+    }
+
+    /**
+     * Loads or stores an array element. A constant index or a constant added to the index ends up in the
+     * displacement of the address, and a base or index held in a callee-saved register is addressed through
+     * that register instead of a copy. A stored value that is not used as a result may be an immediate.
+     */
+    private void access(Expr e, boolean value) {
+        boolean bytes = e.kind == Expr.BYTE_INDEX || e.kind == Expr.BYTE_STORE;
+        boolean store = e.kind == Expr.STORE || e.kind == Expr.BYTE_STORE;
+        int scale = bytes ? 1 : 8;
+        String size = bytes ? BYTE : QWORD;
+        Expr index = e.right;
+        long disp = 0;
+        if (index.isConstant() && fitsDisplacement(index.number, scale)) {
+            disp = index.number * scale;
+            index = null;
+        } else if ((index.kind == Expr.ADD || index.kind == Expr.SUB) && index.right.isConstant()) {
+            long c = index.kind == Expr.ADD ? index.right.number : -index.right.number;
+            if (fitsDisplacement(c, scale)) {
+                disp = c * scale;
+                index = index.left;
+            }
+        }
+
+        // a register variable is read when the address is formed, so nothing evaluated after it may assign it
+        String base = register(e.left);
+        if (base != null && (index != null && !Effects.independent(e.left, index)
+                || store && !Effects.independent(e.left, e.rhs))) {
+            base = null;
+        }
+        String reg = index == null ? null : register(index);
+        if (reg != null && store && !Effects.independent(index, e.rhs)) {
+            reg = null;
+        }
+
+        // cache: [base] [, index] [, value]
+        int depth = 0;
+        if (base == null && index != null && reg == null) {
+            operands(e.left, index);
+            depth = 2;
+        } else if (base == null) {
+            expression(e.left);
+            depth = 1;
+        } else if (index != null && reg == null) {
+            expression(index);
+            depth = 1;
+        }
+        boolean immediate = store && !value && isImmediate(e.rhs);
+        if (store && !immediate) {
+            expression(e.rhs);
+        }
+        int entries = depth + (store && !immediate ? 1 : 0);
+        if (base == null) {
+            base = regname(entries - 1);
+        }
+        if (index != null && reg == null) {
+            reg = regname(entries - depth);
+        }
+
+        if (!store) {
+            if (entries == 0) {
+                push();
+                entries = 1;
+            }
+            String dst = regname(entries - 1);
+            address(out.op(bytes ? "movzx" : "mov").reg(dst), size, base, reg, scale, disp).end();
+        } else {
+            AsmEmitter insn = address(out.op("mov"), size, base, reg, scale, disp);
+            if (immediate) {
+                source(insn, e.rhs).end();
+            } else {
+                insn.reg(bytes ? low(regname(0)) : regname(0)).end();
+                // the stored value is the result
+                int tmp = cache[entries - 1];
+                cache[entries - 1] = cache[0];
+                cache[0] = tmp;
+            }
+        }
+        for (int i = value ? 1 : 0; i < entries; i++) {
+            pop();
+        }
+    }
+
+    /**
+     * @return the callee-saved register holding the local {@code e}, null for anything else
+     */
+    private String register(Expr e) {
+        return e.kind == Expr.LOCAL ? home[e.symbol.index] : null;
+    }
+
+    private static AsmEmitter address(AsmEmitter insn, String size, String base, String index, int scale,
+                                      long disp) {
+        return index == null ? insn.mem(size, base, disp) : insn.mem(size, base, index, scale, disp);
+    }
+
+    private static boolean fitsDisplacement(long c, int scale) {
+        long disp = c * scale;
+        return disp / scale == c && disp == (int) disp;
+    }
+
+    /**
+     * Evaluates two operands so that {@code regname(1)} holds the left and {@code regname(0)} the right one.
+     * <p>
+     * With {@link Options#sethiUllman} the operand needing more registers goes first when the order of
+     * evaluation cannot be observed, so that fewer temporaries are alive while the heavier one is computed.
+     */
+    private void operands(Expr left, Expr right) {
+        if (options.sethiUllman && need(right) > need(left) && Effects.independent(left, right)) {
+            expression(right);
+            expression(left);
+            int tmp = cache[0];
+            cache[0] = cache[1];
+            cache[1] = tmp;
+        } else {
+            expression(left);
+            expression(right);
+        }
+    }
+
+    /**
+     * @return number of registers needed to evaluate {@code e} without spilling (its Ershov number)
+     */
+    private int need(Expr e) {
+        switch (e.kind) {
+            case Expr.CALL:
+                // everything held in the cache is saved around a call
+                return cacheSize;
+            case Expr.ASSIGN:
+                return need(e.rhs);
+            case Expr.NOT:
+            case Expr.NEG:
+                return need(e.left);
+            case Expr.STORE:
+            case Expr.BYTE_STORE:
+                return Math.max(need(e.left), Math.max(need(e.right) + 1, need(e.rhs) + 2));
+            default:
+                if (e.left != null && e.right != null) {
+                    int l = need(e.left);
+                    int r = need(e.right);
+                    return l == r ? l + 1 : Math.max(l, r);
+                }
+                return 1;
+        }
+    }
+
+    /**
+     * {@code regname(1) = regname(1) / regname(0)} (or the remainder) with {@code idiv}, then pops the divisor.
+     */
+    private void divide(boolean remainder) {
+        String dividend = regname(1);
+        String divisor = regname(0);
+        List<String> saved = saveWide(2);
+        boolean onStack = isWide(divisor);
+        if (onStack) {
+            // idiv overwrites rax and rdx, so the divisor is read from the stack instead
+            out.op("push").reg(divisor).end();
+        }
+        if (!dividend.equals("rax")) {
+            out.op("mov").reg("rax").reg(dividend).end();
+        }
+        out.op("cqo").end();
+        if (onStack) {
+            out.op("idiv").mem(QWORD, "rsp", 0).end();
+            out.op("add").reg("rsp").imm(8).end();
+        } else {
+            out.op("idiv").reg(divisor).end();
+        }
+        String result = remainder ? "rdx" : "rax";
+        if (!dividend.equals(result)) {
+            out.op("mov").reg(dividend).reg(result).end();
+        }
+        restoreWide(saved);
+        pop();
+    }
+
+    /**
+     * Division and remainder by a constant: shifts for powers of two, otherwise a multiplication by the
+     * reciprocal (Hacker's Delight, 10-4).
+     *
+     * @return false if the divisor is left to {@code idiv}
+     */
+    private boolean divideByConstant(Expr e) {
+        long c = e.right.number;
+        if (c == 0 || c == 1 || c == -1 || c == Long.MIN_VALUE) {
+            return false;
+        }
+        boolean remainder = e.kind == Expr.MOD;
+        long abs = Math.abs(c);
+        expression(e.left);
+        if (Long.bitCount(abs) == 1) {
+            int k = Long.numberOfTrailingZeros(abs);
+            push();
+            String x = regname(1);
+            String t = regname(0);
+            // t = x + (x < 0 ? 2^k - 1 : 0), so that the shift rounds toward zero
+            out.op("mov").reg(t).reg(x).end();
+            if (k > 1) {
+                out.op("sar").reg(t).imm(63).end();
+            }
+            out.op("shr").reg(t).imm(64 - k).end();
+            out.op("add").reg(t).reg(x).end();
+            if (remainder) {
+                if (-abs == (int) -abs) {
+                    out.op("and").reg(t).imm(-abs).end();
+                } else {
+                    out.op("sar").reg(t).imm(k).end();
+                    out.op("shl").reg(t).imm(k).end();
+                }
+                out.op("sub").reg(x).reg(t).end();
+            } else {
+                out.op("sar").reg(t).imm(k).end();
+                if (c < 0) {
+                    out.op("neg").reg(t).end();
+                }
+                int tmp = cache[0];
+                cache[0] = cache[1];
+                cache[1] = tmp;
+            }
+            pop();
+            return true;
+        }
+
+        long[] magic = magic(c);
+        String x = regname(0);
+        List<String> saved = saveWide(1);
+        boolean onStack = isWide(x);
+        if (onStack) {
+            out.op("push").reg(x).end();
+        }
+        out.op("mov").reg("rax").imm(magic[0]).end();
+        dividend(out.op("imul"), x, onStack).end();
+        if (c > 0 && magic[0] < 0) {
+            dividend(out.op("add").reg("rdx"), x, onStack).end();
+        } else if (c < 0 && magic[0] > 0) {
+            dividend(out.op("sub").reg("rdx"), x, onStack).end();
+        }
+        if (magic[1] > 0) {
+            out.op("sar").reg("rdx").imm(magic[1]).end();
+        }
+        // add one to a negative quotient
+        out.op("mov").reg("rax").reg("rdx").end();
+        out.op("shr").reg("rax").imm(63).end();
+        out.op("add").reg("rdx").reg("rax").end();
+        String result = "rdx";
+        if (remainder) {
+            if (c == (int) c) {
+                out.op("imul").reg("rdx").reg("rdx").imm(c).end();
+            } else {
+                out.op("mov").reg("rax").imm(c).end();
+                out.op("imul").reg("rdx").reg("rax").end();
+            }
+            dividend(out.op("mov").reg("rax"), x, onStack).end();
+            out.op("sub").reg("rax").reg("rdx").end();
+            result = "rax";
+        }
+        if (onStack) {
+            out.op("add").reg("rsp").imm(8).end();
+        }
+        if (!x.equals(result)) {
+            out.op("mov").reg(x).reg(result).end();
+        }
+        restoreWide(saved);
+        return true;
+    }
+
+    private AsmEmitter dividend(AsmEmitter insn, String x, boolean onStack) {
+        return onStack ? insn.mem(QWORD, "rsp", 0) : insn.reg(x);
+    }
+
+    /**
+     * @return the magic multiplier and the shift for signed division by {@code d}, {@code |d| >= 2}
+     */
+    static long[] magic(long d) {
+        final long two63 = Long.MIN_VALUE;
+        long ad = Math.abs(d);
+        long t = two63 + (d >>> 63);
+        long anc = t - 1 - Long.remainderUnsigned(t, ad);
+        int p = 63;
+        long q1 = Long.divideUnsigned(two63, anc);
+        long r1 = two63 - q1 * anc;
+        long q2 = Long.divideUnsigned(two63, ad);
+        long r2 = two63 - q2 * ad;
+        long delta;
+        do {
+            p++;
+            q1 *= 2;
+            r1 *= 2;
+            if (Long.compareUnsigned(r1, anc) >= 0) {
+                q1++;
+                r1 -= anc;
+            }
+            q2 *= 2;
+            r2 *= 2;
+            if (Long.compareUnsigned(r2, ad) >= 0) {
+                q2++;
+                r2 -= ad;
+            }
+            delta = ad - r2;
+        } while (Long.compareUnsigned(q1, delta) < 0 || q1 == delta && r1 == 0);
+        long m = q2 + 1;
+        return new long[]{d < 0 ? -m : m, p - 64};
+    }
+
+    /**
+     * Multiplication by a constant with shifts and {@code lea} where they do, {@code imul} with an immediate
+     * otherwise.
+     *
+     * @return false if the operation is left to the generic code
+     */
+    private boolean multiplyByConstant(Expr e) {
+        Expr operand = e.left;
+        Expr constant = e.right;
+        if (!constant.isConstant()) {
+            if (!operand.isConstant()) {
+                return false;
+            }
+            operand = e.right;
+            constant = e.left;
+        }
+        long c = constant.number;
+        long abs = Math.abs(c);
+        if (c == Long.MIN_VALUE || c != (int) c) {
+            return false;
+        }
+        expression(operand);
+        String x = regname(0);
+        int shift = Long.numberOfTrailingZeros(abs);
+        long odd = abs >> shift;
+        if (c == 0) {
+            out.op("xor").reg(x).reg(x).end();
+        } else if (odd == 1 || odd == 3 || odd == 5 || odd == 9) {
+            if (odd > 1) {
+                out.op("lea").reg(x).mem(QWORD, x, x, (int) odd - 1).end();
+            }
+            if (shift > 0) {
+                out.op("shl").reg(x).imm(shift).end();
+            }
+            if (c < 0) {
+                out.op("neg").reg(x).end();
+            }
+        } else {
+            out.op("imul").reg(x).reg(x).imm(c).end();
+        }
+        return true;
+    }
+
+    private static boolean isWide(String reg) {
+        return reg.equals("rax") || reg.equals("rdx");
+    }
+
+    /**
+     * Pushes rax and rdx if they hold a pending temporary below the top {@code operands} entries of the cache.
+     */
+    private List<String> saveWide(int operands) {
+        List<String> saved = new ArrayList<>(2);
+        for (int i = operands; i < Math.min(stackSize, cacheSize); i++) {
+            if (isWide(regname(i))) {
+                out.op("push").reg(regname(i)).end();
+                saved.add(regname(i));
+            }
+        }
+        return saved;
+    }
+
+    private void restoreWide(List<String> saved) {
+        for (int i = saved.size() - 1; i >= 0; i--) {
+            out.op("pop").reg(saved.get(i)).end();
+        }
+    }
+
+    /**
+     * @return the byte register setcc writes the flag of {@code regname(i)} into
+     */
+    private String flag(int i) {
+        return options.sethiUllman ? low(regname(i)) : "cl";
+    }
+
+    private static String low(String reg) {
+        int family = Insn.family(reg);
+        switch (family) {
+            case 0:
+                return "al";
+            case 1:
+                return "cl";
+            case 2:
+                return "dl";
+            case 3:
+                return "bl";
+            case 6:
+                return "sil";
+            case 7:
+                return "dil";
+            default:
+                return reg + "b";
+        }
+    }
+
+    /**
+     * @return number of the label of a string literal; with {@link Options#mergeConstants} equal literals share
+     * one label
+     */
+    private int string(Expr e) {
+        String text = new String(tokens.source, tokens.start[e.token], tokens.length[e.token]);
+        Integer l = options.mergeConstants ? strings.get(text) : null;
+        if (l == null) {
+            l = label++;
+            AsmEmitter data = rodata();
+            data.label("LC", l);
+            data.op(".string").sym(text).end();
+            text();
+            strings.put(text, l);
+            if (options.mergeConstants) {
+                literals.put(l, text);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * @return where read-only data goes: the pool written at the end of the output with
+     * {@link Options#mergeConstants}, otherwise the code itself after a switch to .rodata that {@link #text()}
+     * switches back from
+     */
+    private AsmEmitter rodata() {
+        if (options.mergeConstants) {
+            return constants;
+        }
+        out.op(".section").sym(".rodata").end();
+        return out;
+    }
+
+    private void text() {
+        if (!options.mergeConstants) {
+            out.op(".text").end();
+        }
+    }
+
+    /**
+     * Loads a leaf expression (literal or variable) into {@code reg}.
+     */
+    private void load(String reg, Expr e) {
+        switch (e.kind) {
+            case Expr.NUMBER:
+                out.op("mov").reg(reg);
+                number(e);
+                out.end();
+                break;
+            case Expr.CHAR:
+                out.op("mov").reg(reg).sym(tokens.source, tokens.start[e.token], tokens.length[e.token]).end();
+                break;
+            case Expr.STRING: {
+                int l = string(e);
+                out.op("mov").reg(reg).offset("LC", l).end();
+                break;
+            }
+            case Expr.LOCAL:
+                if (home[e.symbol.index] != null) {
+                    out.op("mov").reg(reg).reg(home[e.symbol.index]).end();
+                } else {
+                    out.op("mov").reg(reg).mem(QWORD, "rbp", -e.symbol.offset).end();
+                }
+                break;
+            case Expr.GLOBAL:
+                if (options.isel) {
+                    out.op("mov").reg(reg).rip(QWORD, unit.name(e.symbol)).end();
+                } else {
+                    out.op("mov").reg(reg).sym(unit.name(e.symbol)).end();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("leaf " + e.kind);
+        }
+    }
+
+    private static boolean isLeaf(Expr e) {
+        return e.kind <= Expr.GLOBAL;
+    }
+
+    private void call(Expr e) {
+        // all arguments have to fit into the cache at once
+        if (options.callRegs && e.args.length < cacheSize) {
+            directCall(e);
+            return;
+        }
+        // save used regs on stack
+        int i = stackSize;
+        if (i > cacheSize) {
+            i = cacheSize;
+        }
+        while (i-- > 0) {
+            out.op("push").reg(regname(i)).end();
+        }
+
+        int old_size = stackSize;
+        stackSize = 0;
+
+        for (Expr arg : e.args) {
+            expression(arg);
+            out.op("push").reg(regname(0)).end();
+            pop();
+        }
+
+        // set-up registers
+        for (int j = e.args.length - 1; j >= 0; j--) {
+            out.op("pop").reg(call_regs[j]).end();
+        }
+
+        // call
+        out.op("xor").reg("rax").reg("rax").end();
+        out.op("call").sym(unit.name(e.symbol)).end();
+
+        restoreAfterCall(old_size);
+    }
+
+    /**
+     * Call sequence of {@link Options#callRegs}.
+     * <p>
+     * Only the temporaries pending in the cache are live across the call, so only they are saved; promoted
+     * locals sit in callee-saved registers. Arguments are evaluated into the cache and moved into the argument
+     * registers in one go, literals and variables are loaded straight into their argument register after the rest
+     * when no later argument can change them. {@code al} only has to be cleared for a possibly variadic callee,
+     * i.e. one that is not defined in this unit.
+     */
+    private void directCall(Expr e) {
+        int i = Math.min(stackSize, cacheSize);
+        while (i-- > 0) {
+            out.op("push").reg(regname(i)).end();
+        }
+        int old_size = stackSize;
+        initCache();
+        arguments(e);
+        if (e.symbol.kind != Symbol.FUNCTION) {
+            out.op("xor").reg("eax").reg("eax").end();
+        }
+        out.op("call").sym(unit.name(e.symbol)).end();
+        restoreAfterCall(old_size);
+    }
+
+    /**
+     * {@code return f(...)} with {@link Options#tailCalls}: the arguments are put into their registers, the frame
+     * is torn down and the callee is jumped to, so that it returns straight to our caller. When the function calls
+     * itself the parameters are assigned and the body starts over instead.
+     *
+     * @return false if the call has to be a real one
+     */
+    private boolean tailCall(Expr e) {
+        if (!options.tailCalls || !options.callRegs || asm || e.args.length >= cacheSize) {
+            return false;
+        }
+        initCache();
+        if (isSelfCall(e)) {
+            // all arguments are evaluated before the first parameter changes; an unchanged parameter is skipped
+            int[] evaluated = new int[e.args.length];
+            int count = 0;
+            for (int j = 0; j < e.args.length; j++) {
+                if (!isVariable(e.args[j], current.locals.get(j))) {
+                    expression(e.args[j]);
+                    evaluated[count++] = j;
+                }
+            }
+            while (count-- > 0) {
+                destination(out.op("mov"), current.locals.get(evaluated[count])).reg(regname(0)).end();
+                pop();
+            }
+            out.op("jmp").target(".L", l_body).end();
+            return true;
+        }
+        arguments(e);
+        restoreSaved();
+        out.op("leave").end();
+        if (e.symbol.kind != Symbol.FUNCTION) {
+            out.op("xor").reg("eax").reg("eax").end();
+        }
+        out.op("jmp").sym(unit.name(e.symbol)).end();
+        initCache();
+        return true;
+    }
+
+    /**
+     * Puts the arguments of a call into the argument registers.
+     */
+    private void arguments(Expr e) {
+        int n = e.args.length;
+        boolean[] deferred = new boolean[n];
+        for (int j = 0; j < n; j++) {
+            deferred[j] = isLeaf(e.args[j]);
+            for (int k = j + 1; k < n && deferred[j]; k++) {
+                deferred[j] = Effects.independent(e.args[j], e.args[k]);
+            }
+        }
+        int[] evaluated = new int[n];
+        int count = 0;
+        for (int j = 0; j < n; j++) {
+            if (!deferred[j]) {
+                expression(e.args[j]);
+                evaluated[count++] = j;
+            }
+        }
+        String[] src = new String[count];
+        String[] dst = new String[count];
+        for (int t = 0; t < count; t++) {
+            src[t] = regname(count - 1 - t);
+            dst[t] = call_regs[evaluated[t]];
+        }
+        parallelMove(dst, src);
+        for (int j = 0; j < n; j++) {
+            if (deferred[j]) {
+                load(call_regs[j], e.args[j]);
+            }
+        }
+    }
+
+    /**
+     * Emits {@code mov dst[i], src[i]} for all i as if they happened at once.
+     */
+    private void parallelMove(String[] dst, String[] src) {
+        int pending = dst.length;
+        boolean[] done = new boolean[dst.length];
+        while (pending > 0) {
+            boolean progress = false;
+            for (int i = 0; i < dst.length; i++) {
+                if (!done[i] && !isSource(dst[i], src, done, i)) {
+                    if (!dst[i].equals(src[i])) {
+                        out.op("mov").reg(dst[i]).reg(src[i]).end();
+                    }
+                    done[i] = true;
+                    pending--;
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                // only cycles are left: park one source in a register no move involves, or swap it into place
+                for (int i = 0; i < dst.length; i++) {
+                    if (!done[i]) {
+                        String tmp = freeRegister(dst, src);
+                        if (tmp != null) {
+                            out.op("mov").reg(tmp).reg(src[i]).end();
+                            src[i] = tmp;
+                        } else {
+                            out.op("xchg").reg(dst[i]).reg(src[i]).end();
+                            // the value dst[i] held is now in src[i]
+                            for (int j = 0; j < dst.length; j++) {
+                                if (!done[j] && j != i && src[j].equals(dst[i])) {
+                                    src[j] = src[i];
+                                }
+                            }
+                            done[i] = true;
+                            pending--;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isSource(String reg, String[] src, boolean[] done, int except) {
+        for (int i = 0; i < src.length; i++) {
+            if (i != except && !done[i] && src[i].equals(reg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a scratch register that is neither a source nor a destination, null if every one is
+     */
+    private String freeRegister(String[] dst, String[] src) {
+        for (String reg : regs) {
+            boolean used = false;
+            for (int i = 0; i < dst.length; i++) {
+                used |= reg.equals(dst[i]) || reg.equals(src[i]);
+            }
+            if (!used) {
+                return reg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the result of a call from rax and reloads the temporaries saved before it.
+     */
+    private void restoreAfterCall(int old_size) {
+        initCache();
+        push();
+        stackSize = old_size + 1;
+        int m = stackSize;
+        if (m > cacheSize) m = cacheSize;
+        for (int i = 1; i < m; i++) {
+            out.op("pop").reg(regname(i)).end();
+        }
+    }
+
+    private void number(Expr e) {
+        if (e.big == null) {
+            out.imm(e.number);
+        } else if (e.big.bitLength() < 64) {
+            out.imm(e.big.longValue());
+        } else {
+            // slow path for literals that do not fit into a long
+            out.sym(e.big.toString());
+        }
+    }
+
+    private static String arithmetic(int kind) {
+        switch (kind) {
+            case Expr.OR:
+                return "or";
+            case Expr.AND:
+                return "and";
+            case Expr.ADD:
+                return "add";
+            case Expr.SUB:
+                return "sub";
+            case Expr.MUL:
+                return "imul";
+            default:
+                throw new IllegalArgumentException("operator " + kind);
+        }
+    }
+
+    private static String setcc(int kind) {
+        switch (kind) {
+            case Expr.LT:
+                return "setl";
+            case Expr.GT:
+                return "setg";
+            case Expr.LE:
+                return "setle";
+            case Expr.GE:
+                return "setge";
+            case Expr.EQ:
+                return "sete";
+            case Expr.NE:
+                return "setne";
+            default:
+                throw new IllegalArgumentException("comparison " + kind);
+        }
+    }
+
+    private static String jcc(int kind) {
+        switch (kind) {
+            case Expr.LT:
+                return "jl";
+            case Expr.GT:
+                return "jg";
+            case Expr.LE:
+                return "jle";
+            case Expr.GE:
+                return "jge";
+            case Expr.EQ:
+                return "je";
+            case Expr.NE:
+                return "jne";
+            default:
+                throw new IllegalArgumentException("comparison " + kind);
+        }
+    }
+
+    private void push() {
+        int i = cacheSize - 1;
+        int tmp = cache[i];
+        if (stackSize >= cacheSize) {
+            out.op("push").reg(regs[tmp]).end();
+            spills++;
+        }
+        while (i > 0) {
+            cache[i] = cache[i - 1];
+            i--;
+        }
+        cache[0] = tmp;
+        stackSize++;
+    }
+
+    private void pop() {
+        stackSize--;
+        if (stackSize == 0) initCache();
+        else {
+            int i = 0;
+            int tmp = cache[0];
+            while (i < cacheSize - 1) {
+                cache[i] = cache[i + 1];
+                i++;
+            }
+            cache[i] = tmp;
+            // the legacy register choice is kept at -O0, it reloads into the wrong register
+            if (stackSize >= cacheSize) out.op("pop").reg(regs[options.optimize ? tmp : i]).end();
+        }
+    }
+
+    private void enterLoop(int l_continue, int l_break) {
+        while_level++;
+        if (while_level == break_labels.length) {
+            continue_labels = Arrays.copyOf(continue_labels, while_level * 2);
+            break_labels = Arrays.copyOf(break_labels, while_level * 2);
+        }
+        continue_labels[while_level] = l_continue;
+        break_labels[while_level] = l_break;
+    }
+
+    private void initCache() {
+        for (int i = 0; i < cacheSize; i++) {
+            cache[i] = i;
+        }
+        stackSize = 0;
+    }
+
+    /**
+     * A function with the backend generating it into a list of its own.
+     */
+    private static final class Part extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Function function;
+        final InsnList code = new InsnList();
+        final X86Backend backend;
+
+        Part(Unit unit, Function function, Options options) {
+            this.function = function;
+            backend = new X86Backend(code, options);
+            backend.unit = unit;
+            backend.tokens = unit.tokens;
+        }
+
+        @Override
+        protected void compute() {
+            backend.part(function);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package org.remdev.lang.trasanka;
+
+import org.remdev.lang.trasanka.Insn.Operand;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Machine code of the x86-64 instructions the back end emits, in the encodings GNU as picks for them.
+ * <p>
+ * Fields referring to a symbol are left zero and described by a {@link Fixup} for the object writer to resolve.
+ * A jump to a local label is encoded by {@link #jump} once the distance to the label is known.
+ * <p>
+ * A {@link Operand#SYM} operand is a symbol, taken as the memory at its address except as the target of a call
+ * or jump, unless it is a character literal or a number, which is an immediate.
+ */
+final class X86Encoder {
+    // relocation types of the System V x86-64 ABI
+    static final int R_X86_64_64 = 1;
+    static final int R_X86_64_PC32 = 2;
+    static final int R_X86_64_PLT32 = 4;
+    static final int R_X86_64_32S = 11;
+
+    /**
+     * A field of an instruction or datum to be filled with the address of {@code symbol} plus {@code addend}.
+     */
+    static final class Fixup {
+        // offset of the field from the start of the instruction
+        final int at;
+        final int type;
+        final String symbol;
+        final long addend;
+
+        Fixup(int at, int type, String symbol, long addend) {
+            this.at = at;
+            this.type = type;
+            this.symbol = symbol;
+            this.addend = addend;
+        }
+    }
+
+    private static final String[] CONDITIONS = {
+            "o", "no", "b", "ae", "e", "ne", "be", "a", "s", "ns", "p", "np", "l", "ge", "le", "g",
+    };
+    private static final String[] ALIASES = {
+            "c", "b", "nae", "b", "nc", "ae", "nb", "ae", "z", "e", "nz", "ne", "na", "be", "nbe", "a",
+            "pe", "p", "po", "np", "nge", "l", "nl", "ge", "ng", "le", "nle", "g",
+    };
+    private static final String[] ARITHMETIC = {"add", "or", "adc", "sbb", "and", "sub", "xor", "cmp"};
+
+    private byte[] code = new byte[16];
+    private int size;
+    private List<Fixup> fixups;
+
+    /**
+     * @return true for a direct jump to a label or symbol, which {@link #jump} encodes if the label is defined
+     * in the same section
+     */
+    static boolean isJump(Insn insn) {
+        return insn.kind == Insn.OP && insn.operands.length == 1
+                && (insn.operands[0].kind == Operand.TARGET || insn.operands[0].kind == Operand.SYM)
+                && (insn.op.equals("jmp") || insn.op.charAt(0) == 'j' && condition(insn.op.substring(1)) >= 0);
+    }
+
+    /**
+     * @return the bytes of {@code insn}; the fields it leaves to the object writer are added to {@code fixups}
+     */
+    byte[] encode(Insn insn, List<Fixup> fixups) {
+        this.fixups = fixups;
+        size = 0;
+        Operand[] o = insn.operands;
+        switch (insn.op) {
+            case "mov":
+                mov(o[0], o[1]);
+                break;
+            case "xchg":
+                if (o[0].isReg("rax") || o[1].isReg("rax")) {
+                    shortForm(0x90, o[0].isReg("rax") ? o[1].name : o[0].name);
+                } else {
+                    rm(true, o[1].name, o[0], 0, 0x87);
+                }
+                break;
+            case "movzx":
+                rm(width(o[0]) == 8, o[0].name, o[1], 0, 0x0F, 0xB6);
+                break;
+            case "lea":
+                rm(true, o[0].name, o[1], 0, 0x8D);
+                break;
+            case "test":
+                rm(isWide(o[0]), o[1].name, o[0], 0, width(o[1]) == 1 ? 0x84 : 0x85);
+                break;
+            case "imul":
+                imul(o);
+                break;
+            case "shl":
+                shift(4, o[0], o[1]);
+                break;
+            case "shr":
+                shift(5, o[0], o[1]);
+                break;
+            case "sar":
+                shift(7, o[0], o[1]);
+                break;
+            case "not":
+                rm(isWide(o[0]), 2, o[0], 0, 0xF7);
+                break;
+            case "neg":
+                rm(isWide(o[0]), 3, o[0], 0, 0xF7);
+                break;
+            case "idiv":
+                rm(isWide(o[0]), 7, o[0], 0, 0xF7);
+                break;
+            case "cqo":
+                put(0x48, 0x99);
+                break;
+            case "leave":
+                put(0xC9);
+                break;
+            case "ret":
+                put(0xC3);
+                break;
+            case "nop":
+                put(0x90);
+                break;
+            case "push":
+                if (o[0].kind == Operand.REG) {
+                    shortForm(0x50, o[0].name);
+                } else if (isImmediate(o[0]) && fits8(immediate(o[0]))) {
+                    put(0x6A);
+                    put((int) immediate(o[0]));
+                } else if (isImmediate(o[0])) {
+                    put(0x68);
+                    imm32(o[0]);
+                } else {
+                    rm(false, 6, o[0], 0, 0xFF);
+                }
+                break;
+            case "pop":
+                if (o[0].kind == Operand.REG) {
+                    shortForm(0x58, o[0].name);
+                } else {
+                    rm(false, 0, o[0], 0, 0x8F);
+                }
+                break;
+            case "call":
+                branch(0xE8, 2, o[0]);
+                break;
+            case "jmp":
+                branch(0xE9, 4, o[0]);
+                break;
+            default:
+                int n = Arrays.asList(ARITHMETIC).indexOf(insn.op);
+                if (n >= 0) {
+                    arithmetic(n, o[0], o[1]);
+                } else if (insn.op.charAt(0) == 'j' && condition(insn.op.substring(1)) >= 0) {
+                    // to a symbol of another section or object
+                    put(0x0F);
+                    branch(0x80 + condition(insn.op.substring(1)), -1, o[0]);
+                } else if (insn.op.startsWith("set") && condition(insn.op.substring(3)) >= 0) {
+                    rm(false, 0, o[0], 0, 0x0F, 0x90 + condition(insn.op.substring(3)));
+                } else {
+                    throw new IllegalArgumentException("instruction " + insn.op);
+                }
+                break;
+        }
+        return Arrays.copyOf(code, size);
+    }
+
+    /**
+     * @return the bytes of a jump to a label {@code distance} bytes after the end of the jump, {@code near} for
+     * the rel32 form, the rel8 one otherwise
+     */
+    byte[] jump(Insn insn, boolean near, long distance) {
+        size = 0;
+        boolean always = insn.op.equals("jmp");
+        if (!near) {
+            put(always ? 0xEB : 0x70 + condition(insn.op.substring(1)));
+            put((int) distance);
+        } else {
+            if (always) {
+                put(0xE9);
+            } else {
+                put(0x0F, 0x80 + condition(insn.op.substring(1)));
+            }
+            int32(distance);
+        }
+        return Arrays.copyOf(code, size);
+    }
+
+    /**
+     * @return size of a jump in the rel8 ({@code near} false) or rel32 form
+     */
+    static int jumpSize(Insn insn, boolean near) {
+        return !near ? 2 : insn.op.equals("jmp") ? 5 : 6;
+    }
+
+    static boolean fits8(long value) {
+        return value == (byte) value;
+    }
+
+    private static int condition(String cc) {
+        for (int i = 0; i < CONDITIONS.length; i++) {
+            if (CONDITIONS[i].equals(cc)) {
+                return i;
+            }
+        }
+        for (int i = 0; i < ALIASES.length; i += 2) {
+            if (ALIASES[i].equals(cc)) {
+                return condition(ALIASES[i + 1]);
+            }
+        }
+        return -1;
+    }
+
+    private void mov(Operand dst, Operand src) {
+        if (dst.kind == Operand.REG) {
+            int width = width(dst.name);
+            if (src.kind == Operand.REG) {
+                rm(width == 8, src.name, dst, 0, width == 1 ? 0x88 : 0x89);
+            } else if (isImmediate(src)) {
+                if (width == 8 && src.kind != Operand.OFFSET && immediate(src) != (int) immediate(src)) {
+                    shortForm(0xB8, dst.name);
+                    int64(immediate(src));
+                } else if (width == 8) {
+                    rm(true, 0, dst, 4, 0xC7);
+                    imm32(src);
+                } else if (width == 1) {
+                    shortForm(0xB0, dst.name);
+                    put((int) immediate(src));
+                } else {
+                    shortForm(0xB8, dst.name);
+                    imm32(src);
+                }
+            } else {
+                rm(width == 8, dst.name, src, 0, width == 1 ? 0x8A : 0x8B);
+            }
+        } else if (src.kind == Operand.REG) {
+            int width = width(src.name);
+            rm(width == 8, src.name, dst, 0, width == 1 ? 0x88 : 0x89);
+        } else if (isByte(dst)) {
+            rm(false, 0, dst, 1, 0xC6);
+            put((int) immediate(src));
+        } else {
+            rm(true, 0, dst, 4, 0xC7);
+            imm32(src);
+        }
+    }
+
+    private void arithmetic(int n, Operand dst, Operand src) {
+        boolean bytes = isByte(dst) || dst.kind == Operand.REG && width(dst.name) == 1;
+        if (isImmediate(src)) {
+            long value = immediate(src);
+            if (bytes) {
+                rm(false, n, dst, 1, 0x80);
+                put((int) value);
+            } else if (src.kind != Operand.OFFSET && fits8(value)) {
+                rm(isWide(dst), n, dst, 1, 0x83);
+                put((int) value);
+            } else if (dst.kind == Operand.REG && Insn.family(dst.name) == 0) {
+                // the short form for the accumulator
+                if (isWide(dst)) {
+                    put(0x48);
+                }
+                put(n * 8 + 5);
+                imm32(src);
+            } else {
+                rm(isWide(dst), n, dst, 4, 0x81);
+                imm32(src);
+            }
+        } else if (src.kind == Operand.REG) {
+            rm(isWide(src), src.name, dst, 0, n * 8 + (bytes ? 0 : 1));
+        } else {
+            rm(isWide(dst), dst.name, src, 0, n * 8 + (bytes ? 2 : 3));
+        }
+    }
+
+    private void imul(Operand[] o) {
+        if (o.length == 1) {
+            rm(isWide(o[0]), 5, o[0], 0, 0xF7);
+            return;
+        }
+        Operand source = o.length == 3 ? o[1] : o[0];
+        Operand factor = o.length == 3 ? o[2] : o[1];
+        if (!isImmediate(factor)) {
+            rm(isWide(o[0]), o[0].name, factor, 0, 0x0F, 0xAF);
+        } else if (fits8(immediate(factor))) {
+            rm(isWide(o[0]), o[0].name, source, 1, 0x6B);
+            put((int) immediate(factor));
+        } else {
+            rm(isWide(o[0]), o[0].name, source, 4, 0x69);
+            imm32(factor);
+        }
+    }
+
+    private void shift(int n, Operand dst, Operand count) {
+        if (count.kind == Operand.REG) {
+            rm(isWide(dst), n, dst, 0, 0xD3);
+        } else if (immediate(count) == 1) {
+            rm(isWide(dst), n, dst, 0, 0xD1);
+        } else {
+            rm(isWide(dst), n, dst, 1, 0xC1);
+            put((int) immediate(count));
+        }
+    }
+
+    /**
+     * call/jmp: rel32 to a symbol, otherwise through a register or memory.
+     */
+    private void branch(int opcode, int extension, Operand target) {
+        if (target.kind == Operand.SYM) {
+            put(opcode);
+            fixups.add(new Fixup(size, R_X86_64_PLT32, target.name, -4));
+            int32(0);
+        } else {
+            rm(false, extension, target, 0, 0xFF);
+        }
+    }
+
+    /**
+     * Appends {@code opcode + register} with the REX prefix the register needs.
+     */
+    private void shortForm(int opcode, String reg) {
+        int r = Insn.family(reg);
+        int rex = (width(reg) == 8 && opcode != 0x50 && opcode != 0x58 ? 0x48 : 0) | (r >= 8 ? 0x41 : 0);
+        if (rex == 0 && width(reg) == 1 && r >= 4) {
+            rex = 0x40;
+        }
+        if (rex != 0) {
+            put(rex);
+        }
+        put(opcode + (r & 7));
+    }
+
+    private void rm(boolean wide, String reg, Operand rm, int immediate, int... opcode) {
+        rm(wide, Insn.family(reg), rm, immediate, width(reg) == 1 && Insn.family(reg) >= 4, opcode);
+    }
+
+    private void rm(boolean wide, int extension, Operand rm, int immediate, int... opcode) {
+        rm(wide, extension, rm, immediate, false, opcode);
+    }
+
+    /**
+     * Appends the REX prefix, the opcode, ModRM, SIB and displacement of an instruction with a register or
+     * opcode extension {@code reg} and the register or memory operand {@code rm}; {@code immediate} bytes follow.
+     */
+    private void rm(boolean wide, int reg, Operand rm, int immediate, boolean byteReg, int... opcode) {
+        int base = -1;
+        int index = -1;
+        if (rm.kind == Operand.REG) {
+            base = Insn.family(rm.name);
+            byteReg |= width(rm.name) == 1 && base >= 4;
+        } else if (rm.kind == Operand.MEM) {
+            base = Insn.family(rm.name);
+            index = rm.index != null ? Insn.family(rm.index) : -1;
+        }
+        int rex = (wide ? 8 : 0) | (reg >= 8 ? 4 : 0) | (index >= 8 ? 2 : 0) | (base >= 8 ? 1 : 0);
+        if (rex != 0 || byteReg) {
+            put(0x40 | rex);
+        }
+        put(opcode);
+        reg &= 7;
+        switch (rm.kind) {
+            case Operand.REG:
+                put(0xC0 | reg << 3 | base & 7);
+                break;
+            case Operand.RIP:
+                put(reg << 3 | 5);
+                fixups.add(new Fixup(size, R_X86_64_PC32, rm.name, -4 - immediate));
+                int32(0);
+                break;
+            case Operand.SYM:
+                // absolute address: SIB without base and index
+                put(reg << 3 | 4, 0x25);
+                fixups.add(new Fixup(size, R_X86_64_32S, rm.name, 0));
+                int32(0);
+                break;
+            case Operand.MEM: {
+                long disp = rm.value;
+                int mod = disp == 0 && (base & 7) != 5 ? 0 : fits8(disp) ? 0x40 : 0x80;
+                if (index < 0 && (base & 7) != 4) {
+                    put(mod | reg << 3 | base & 7);
+                } else {
+                    put(mod | reg << 3 | 4);
+                    put(scale(index < 0 ? 1 : rm.scale) << 6 | (index < 0 ? 4 : index & 7) << 3 | base & 7);
+                }
+                if (mod == 0x40) {
+                    put((int) disp);
+                } else if (mod == 0x80) {
+                    int32(disp);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("operand " + rm.kind);
+        }
+    }
+
+    private static int scale(int scale) {
+        return Integer.numberOfTrailingZeros(scale);
+    }
+
+    private void imm32(Operand o) {
+        if (o.kind == Operand.OFFSET) {
+            fixups.add(new Fixup(size, R_X86_64_32S, o.name + o.value, 0));
+            int32(0);
+        } else {
+            int32(immediate(o));
+        }
+    }
+
+    private static boolean isImmediate(Operand o) {
+        if (o.kind == Operand.IMM || o.kind == Operand.OFFSET) {
+            return true;
+        }
+        if (o.kind != Operand.SYM) {
+            return false;
+        }
+        char c = o.name.charAt(0);
+        return c == '\'' || c == '-' || Character.isDigit(c);
+    }
+
+    private static long immediate(Operand o) {
+        if (o.kind == Operand.IMM) {
+            return o.value;
+        }
+        if (o.kind == Operand.OFFSET) {
+            return 0;
+        }
+        if (o.name.charAt(0) != '\'') {
+            // a number too large for a long keeps its low 64 bits
+            return new BigInteger(o.name).longValue();
+        }
+        // 'c' or '\c'
+        char c = o.name.charAt(1);
+        return c == '\\' ? Lexer.escapeValue(o.name.charAt(2)) : c;
+    }
+
+    private static boolean isByte(Operand o) {
+        return (o.kind == Operand.MEM || o.kind == Operand.RIP) && AsmEmitter.BYTE.equals(o.size);
+    }
+
+    private static boolean isWide(Operand o) {
+        return o.kind == Operand.REG ? width(o.name) == 8 : !isByte(o);
+    }
+
+    /**
+     * @return bytes in the register
+     */
+    static int width(String reg) {
+        char last = reg.charAt(reg.length() - 1);
+        if (reg.charAt(0) == 'r' && Character.isDigit(reg.charAt(1))) {
+            return last == 'd' ? 4 : last == 'w' ? 2 : last == 'b' ? 1 : 8;
+        }
+        if (reg.charAt(0) == 'r') {
+            return 8;
+        }
+        if (reg.charAt(0) == 'e') {
+            return 4;
+        }
+        return last == 'l' ? 1 : 2;
+    }
+
+    private static int width(Operand o) {
+        return width(o.name);
+    }
+
+    private void put(int... bytes) {
+        for (int b : bytes) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = (byte) b;
+        }
+    }
+
+    private void int32(long value) {
+        put((int) value, (int) (value >> 8), (int) (value >> 16), (int) (value >> 24));
+    }
+
+    private void int64(long value) {
+        int32(value);
+        int32(value >> 32);
+    }
+}